@@ -26,10 +26,18 @@ import java.util.List;
 
 import enriqueutrilla.sgmac.dm.Cluster;
 import enriqueutrilla.sgmac.dm.DatasetPoint;
-import enriqueutrilla.sgmac.infra.IndexedDataset;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.infra.AttractionCache;
+import enriqueutrilla.sgmac.infra.BatchEmEngine;
+import enriqueutrilla.sgmac.infra.EmAcceleration;
+import enriqueutrilla.sgmac.infra.IndexType;
 import enriqueutrilla.sgmac.infra.ModalClustering;
 import enriqueutrilla.sgmac.infra.ModalEmUpdater;
-import enriqueutrilla.sgmac.infra.PathUpdater;
+import enriqueutrilla.sgmac.infra.RandomProjectionIndex;
+import enriqueutrilla.sgmac.infra.SpatialIndex;
+import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.KernelProfile;
+import enriqueutrilla.sgmac.util.Whitening;
 
 public class BasicMac implements Mac{
 	
@@ -38,6 +46,20 @@ public class BasicMac implements Mac{
 	
 	private double clusterPositionTolerance = 0.001;
 	
+	private IndexType indexType = IndexType.TREE;
+	private boolean parallelIndexing = false;
+	private SpatialIndex<DatasetPoint> kernelsIdx = null;
+	private int recallQueries = 0;
+	private boolean singlePrecision = false;
+	private boolean whitening = false;
+	private KernelProfile kernelProfile = KernelProfile.gaussian();
+	private int parallelism = 1;
+	private double attractionCellSize = 0;
+	private EmAcceleration acceleration = EmAcceleration.NONE;
+	private double batchCellSize = 0;
+	private boolean mergeChainedModes = false;
+	private boolean reuseNeighborhoods = true;
+	
 	private List<Cluster> clusters;
 	
 	public BasicMac(double[] sigmas){
@@ -49,6 +71,97 @@ public class BasicMac implements Mac{
 		}
 	}
 	
+	public BasicMac withIndexType(IndexType indexType){
+		this.indexType = indexType;
+		return this;
+	}
+	
+	public BasicMac withParallelIndexing(boolean parallelIndexing){
+		this.parallelIndexing = parallelIndexing;
+		return this;
+	}
+	
+	// Index of the kernels (i.e. the points to cluster) built beforehand,
+	// for instance reopened with GridIndexFile.open
+	public BasicMac withKernelIndex(SpatialIndex<DatasetPoint> kernelsIdx){
+		this.kernelsIdx = kernelsIdx;
+		return this;
+	}
+	
+	// Number of queries used to measure and log the recall of an approximate
+	// kernel index against an exact one (0 to skip the measurement)
+	public BasicMac withRecallReport(int recallQueries){
+		this.recallQueries = recallQueries;
+		return this;
+	}
+	
+	// Store the kernels (and the coordinates kept by the index) in single
+	// precision. Paths start from the original coordinates and all the
+	// arithmetic is still done in double. Unless they are whitened, points
+	// that are not already in a single precision PointStore are copied to one
+	public BasicMac withSinglePrecision(boolean singlePrecision){
+		this.singlePrecision = singlePrecision;
+		return this;
+	}
+	
+	// Run the mode search on whitened coordinates (scaled by 1/sigma), where
+	// kernels and convergence checks use plain Euclidean distances. Modes
+	// and clusters are reported in the original units
+	public BasicMac withWhitening(boolean whitening){
+		this.whitening = whitening;
+		return this;
+	}
+	
+	// Kernel used in the EM updates. Compact support kernels only retrieve
+	// the points within their support radius
+	public BasicMac withKernel(KernelProfile kernelProfile){
+		this.kernelProfile = kernelProfile;
+		return this;
+	}
+	
+	// Number of threads searching the modes of the points (0 for all the
+	// available processors). The clusters do not depend on the number of threads
+	public BasicMac withParallelism(int parallelism){
+		this.parallelism = parallelism;
+		return this;
+	}
+	
+	// Stop the paths entering a cell of this size (in sigmas) already visited
+	// by a converged path, with its mode (0 to disable). See AttractionCache
+	public BasicMac withAttractionCache(double cellSizeInSigmas){
+		this.attractionCellSize = cellSizeInSigmas;
+		return this;
+	}
+	
+	// Strategy to take longer EM steps near flat modes. See EmAcceleration
+	public BasicMac withAcceleration(EmAcceleration acceleration){
+		this.acceleration = acceleration;
+		return this;
+	}
+	
+	// Advance all the paths together, one iteration at a time, loading the
+	// kernels once per cell of the grid index, or of a grid of this size in
+	// sigmas for other indexes (0 to follow each path on its own). See
+	// BatchEmEngine
+	public BasicMac withBatchEngine(double cellSizeInSigmas){
+		this.batchCellSize = cellSizeInSigmas;
+		return this;
+	}
+	
+	// Merge the clusters whose modes are chained within the position
+	// tolerance by the mode of another point (see ClusterModeIndex)
+	public BasicMac withModeMerging(boolean mergeChainedModes){
+		this.mergeChainedModes = mergeChainedModes;
+		return this;
+	}
+	
+	// Reuse the kernels of a path while it stays in the same cell of a grid
+	// index (the results are the same either way)
+	public BasicMac withNeighborhoodReuse(boolean reuseNeighborhoods){
+		this.reuseNeighborhoods = reuseNeighborhoods;
+		return this;
+	}
+	
 	public String getMacSubtype(){
 		return "Basic MAC";
 	}
@@ -60,14 +173,62 @@ public class BasicMac implements Mac{
 	public void cluster(List<DatasetPoint> points) {
 		
 		
-		IndexedDataset<DatasetPoint> kernelsIdx = new IndexedDataset<>(points,sigmas, 2);
-		kernelsIdx.indexData();
+		Whitening whitener = whitening ? new Whitening(sigmas) : null;
+		double[] kernelSigmas = whitening ? whitener.getUnitSigmas() : sigmas;
+		double[] kernelSigmas2 = whitening ? whitener.getUnitSigmas() : sigmas2;
 		
-		PathUpdater updaterEm = new ModalEmUpdater(kernelsIdx, sigmas2);
+		SpatialIndex<DatasetPoint> kernelsIdx = this.kernelsIdx;
+		if (kernelsIdx != null && whitening) {
+			throw new IllegalStateException("A prebuilt kernel index cannot be used with whitening");
+		}
+		if (kernelsIdx == null) {
+			List<DatasetPoint> kernels = whitening ? whitener.whiten(points, singlePrecision) : points;
+			PointStore store = PointStore.of(kernels);
+			if (singlePrecision && (store == null || !store.isSinglePrecision())) {
+				kernels = PointStore.fromPoints(kernels, false, true).asList();
+			}
+			kernelsIdx = indexType.create(kernels, kernelSigmas, 2, -1, singlePrecision);
+			kernelsIdx.indexData(parallelIndexing);
+		}
+		if (recallQueries > 0 && kernelsIdx instanceof RandomProjectionIndex) {
+			// same radius as the queries of the updater
+			double radius = kernelProfile.getSupportRadius();
+			double recall = ((RandomProjectionIndex<DatasetPoint>) kernelsIdx).measureRecall(recallQueries, radius);
+			Console.log("Measured recall of the kernel index at " + radius + " sigmas: " + recall);
+		}
+		
+		ModalEmUpdater updaterEm = new ModalEmUpdater(kernelsIdx, kernelSigmas2, kernelProfile);
+		updaterEm.setAcceleration(acceleration);
+		updaterEm.setReuseNeighborhoods(reuseNeighborhoods);
+		AttractionCache cache = null;
+		if (attractionCellSize > 0) {
+			cache = new AttractionCache(kernelSigmas, attractionCellSize);
+			updaterEm.setAttractionCache(cache);
+		}
 		
 		ModalClustering clusteringEm = new ModalClustering(updaterEm, sigmas2, clusterPositionTolerance);
+		clusteringEm.setWhitening(whitener);
+		clusteringEm.setParallelism(parallelism);
+		clusteringEm.setMergeChainedModes(mergeChainedModes);
+		BatchEmEngine engine = null;
+		if (batchCellSize > 0) {
+			if (cache != null) {
+				throw new IllegalStateException("The attraction cache cannot be used with the batch engine");
+			}
+			engine = new BatchEmEngine(updaterEm, batchCellSize);
+			engine.setParallelism(parallelism);
+			clusteringEm.setBatchEngine(engine);
+		}
 		
 		clusters = clusteringEm.cluster(points);
+		
+		Console.log(updaterEm.getConvergenceStats());
+		if (engine != null) {
+			Console.log(engine.getStats());
+		}
+		if (cache != null) {
+			Console.log(cache.getStats());
+		}
 	}
 
 	public List<Cluster> getClusters() {
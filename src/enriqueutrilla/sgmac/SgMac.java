@@ -19,21 +19,34 @@ package enriqueutrilla.sgmac;
  * Implementation of Sampled Gradient Modal Association Clustering algorithm
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
 import enriqueutrilla.sgmac.dm.Cluster;
 import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PathPoint;
 import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.PointStore;
 import enriqueutrilla.sgmac.dm.SampledPdfPoint;
-import enriqueutrilla.sgmac.infra.IndexedDataset;
+import enriqueutrilla.sgmac.infra.AttractionCache;
+import enriqueutrilla.sgmac.infra.ClusterAssigner;
+import enriqueutrilla.sgmac.infra.IndexType;
 import enriqueutrilla.sgmac.infra.ModalClustering;
+import enriqueutrilla.sgmac.infra.ModeFinder;
 import enriqueutrilla.sgmac.infra.PathUpdater;
 import enriqueutrilla.sgmac.infra.PdfGradientSampler;
 import enriqueutrilla.sgmac.infra.PdfLocalMaximaSearch;
+import enriqueutrilla.sgmac.infra.RandomProjectionIndex;
+import enriqueutrilla.sgmac.infra.SampleGraphUpdater;
 import enriqueutrilla.sgmac.infra.SampleSelection;
 import enriqueutrilla.sgmac.infra.SampledGradientUpdater;
+import enriqueutrilla.sgmac.infra.SpatialIndex;
 import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.KernelProfile;
+import enriqueutrilla.sgmac.util.Metrics;
+import enriqueutrilla.sgmac.util.Whitening;
 
 public class SgMac implements Mac {
 
@@ -60,14 +73,39 @@ public class SgMac implements Mac {
 	// one of the selected sampling points
 	protected double clusterPositionTolerance = 0.01;
 
-	protected IndexedDataset<SampledPdfPoint> sampledPdfIdx = null;
-	protected IndexedDataset<SampledPdfPoint> localMaximaIdx = null;
+	protected SpatialIndex<SampledPdfPoint> sampledPdfIdx = null;
+	protected SpatialIndex<SampledPdfPoint> localMaximaIdx = null;
 	protected List<Cluster> clusters = null;
 
 	protected boolean initialized = false;
+	protected volatile ClusterAssigner assigner = null;
 
 	protected int cellSizeFactor = 2;
 
+	protected IndexType indexType = IndexType.TREE;
+	protected boolean parallelIndexing = false;
+	protected SpatialIndex<DatasetPoint> kernelsIdx = null;
+	protected int recallQueries = 0;
+	protected boolean singlePrecision = false;
+	protected boolean whitening = false;
+	protected KernelProfile kernelProfile = KernelProfile.gaussian();
+	protected int parallelism = 1;
+	protected double attractionCellSize = 0;
+	protected boolean mergeChainedModes = false;
+	protected boolean reuseNeighborhoods = true;
+	protected double pdfRadius = 0;
+	protected boolean sampleGraph = false;
+	protected boolean neighborGraph = false;
+
+	// Time spent in each stage, and size of the output of the stages
+	protected final Metrics metrics = new Metrics();
+
+	// Space where the stages run: the original one, or the whitened one
+	// (unit sigmas) if whitening is enabled
+	protected Whitening whitener = null;
+	protected double[] kernelSigmas;
+	protected double[] kernelSigmas2;
+
 	
 	public SgMac(double[] sigmas) {
 
@@ -115,6 +153,109 @@ public class SgMac implements Mac {
 		return this;
 	}
 	
+	public SgMac withIndexType(IndexType indexType) {
+		this.indexType = indexType;
+		return this;
+	}
+	
+	public SgMac withParallelIndexing(boolean parallelIndexing) {
+		this.parallelIndexing = parallelIndexing;
+		return this;
+	}
+
+	// Index of the kernels (i.e. the full dataset) built beforehand,
+	// for instance reopened with GridIndexFile.open
+	public SgMac withKernelIndex(SpatialIndex<DatasetPoint> kernelsIdx) {
+		this.kernelsIdx = kernelsIdx;
+		return this;
+	}
+
+	// Number of queries used to measure and log the recall of an approximate
+	// kernel index against an exact one (0 to skip the measurement)
+	public SgMac withRecallReport(int recallQueries) {
+		this.recallQueries = recallQueries;
+		return this;
+	}
+
+	// Store the kernels, the gradients of the PDF samples and the coordinates
+	// kept by the indexes in single precision. All the arithmetic is still
+	// done in double. The points are converted once to a single precision
+	// PointStore (unless they already are one), which the stages share
+	public SgMac withSinglePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+		return this;
+	}
+
+	// Run all the stages on whitened coordinates (scaled by 1/sigma), where
+	// distances are plain Euclidean distances. Modes, clusters, PDF samples
+	// and local maxima are reported in the original units
+	public SgMac withWhitening(boolean whitening) {
+		this.whitening = whitening;
+		return this;
+	}
+
+	// Kernel used to estimate the PDF and its gradient. Compact support
+	// kernels only retrieve the data points within their support radius
+	public SgMac withKernel(KernelProfile kernelProfile) {
+		this.kernelProfile = kernelProfile;
+		return this;
+	}
+
+	// Number of threads used by the PDF sampling, the local maxima search and
+	// the clustering (0 for all the available processors). The results do not
+	// depend on the number of threads
+	public SgMac withParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	// Stop the paths entering a cell of this size (in sigmas) already visited
+	// by a converged path, with its mode (0 to disable). See AttractionCache
+	public SgMac withAttractionCache(double cellSizeInSigmas) {
+		this.attractionCellSize = cellSizeInSigmas;
+		return this;
+	}
+
+	// Merge the clusters whose modes are chained within the position
+	// tolerance by the mode of another point (see ClusterModeIndex)
+	public SgMac withModeMerging(boolean mergeChainedModes) {
+		this.mergeChainedModes = mergeChainedModes;
+		return this;
+	}
+
+	// Reuse the neighborhoods of a path while it stays in the same cell of a
+	// grid index (the results are the same either way)
+	public SgMac withNeighborhoodReuse(boolean reuseNeighborhoods) {
+		this.reuseNeighborhoods = reuseNeighborhoods;
+		return this;
+	}
+
+	// Radius (in sigmas) of the neighborhood query of each PDF sample (0 for
+	// the support radius of the kernel)
+	public SgMac withPdfRadius(double radiusInSigmas) {
+		this.pdfRadius = radiusInSigmas;
+		return this;
+	}
+
+	// Precompute the sample each sample flows to and assign each point the
+	// mode of its closest sample, instead of following its path. See
+	// SampleGraphUpdater
+	public SgMac withSampleGraph(boolean sampleGraph) {
+		this.sampleGraph = sampleGraph;
+		return this;
+	}
+
+	// Gather the neighbors of the PDF samples in a RadiusNeighborGraph before
+	// looking for the local maxima (same maxima, more memory)
+	public SgMac withNeighborGraph(boolean neighborGraph) {
+		this.neighborGraph = neighborGraph;
+		return this;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
 	public String getMacSubtype() {
 		return "SG-MAC";
 	}
@@ -127,14 +268,36 @@ public class SgMac implements Mac {
 	
 	
 	public Point findMode(Point initial, boolean trace) {
-		PathUpdater updater = new SampledGradientUpdater(sampledPdfIdx, localMaximaIdx, sigmas2, stepFactor,
+		PathUpdater updater = new SampledGradientUpdater(sampledPdfIdx, localMaximaIdx, kernelSigmas2, stepFactor,
 				locMaxDistanceThreshold);
 		updater.setMaxIterations(maxIterations);
-		return updater.findMode(initial, trace);
+		if (whitener == null) {
+			return updater.findMode(initial, trace);
+		}
+		PathPoint mode = updater.findMode(new Point(whitener.whiten(initial.getCoordinates())), trace);
+		mode.setCoordinates(whitener.unwhiten(mode.getCoordinates()));
+		return mode;
 	}
 
 	public void initialize(List<DatasetPoint> points) {
 
+		metrics.reset();
+		long start = System.nanoTime();
+		assigner = null;
+
+		setUpSpace();
+		if (whitening) {
+			if (kernelsIdx != null) {
+				throw new IllegalStateException("A prebuilt kernel index cannot be used with whitening");
+			}
+			points = whitener.whiten(points, singlePrecision);
+		} else if (singlePrecision && kernelsIdx == null) {
+			PointStore store = PointStore.of(points);
+			if (store == null || !store.isSinglePrecision()) {
+				points = PointStore.fromPoints(points, false, true).asList();
+			}
+		}
+
 		// --------- Stage 1: Selection of sample points from the dataset ---------
 
 		// The purposes of this decimation are:
@@ -153,32 +316,57 @@ public class SgMac implements Mac {
 			stage1Points = stage1.sample(points);
 			Console.log("Selected " + stage1Points.size() + " points for sampling");
 		}
+		start = endStage("sample selection", start);
 
 		// --------- Stage 2: Calculation of PDF and its gradient at each sampling point ---------
 		
 		Console.log("Calculating PDF sampling at " + stage1Points.size() + " points...");
 
-		IndexedDataset<DatasetPoint> kernelsIdx = new IndexedDataset<>(points, sigmas, 2, 2);
-		kernelsIdx.indexData();
-
-		PdfGradientSampler<DatasetPoint> stage2 = new PdfGradientSampler<>(stage1Points, sigmas2);
+		SpatialIndex<DatasetPoint> kernelsIdx = this.kernelsIdx;
+		if (kernelsIdx == null) {
+			kernelsIdx = indexType.create(points, kernelSigmas, 2, 2, singlePrecision);
+			kernelsIdx.indexData(parallelIndexing);
+		}
+		if (recallQueries > 0 && kernelsIdx instanceof RandomProjectionIndex) {
+			// same radius as the queries of the PDF sampler
+			double radius = (pdfRadius > 0) ? pdfRadius : kernelProfile.getSupportRadius();
+			double recall = ((RandomProjectionIndex<DatasetPoint>) kernelsIdx).measureRecall(recallQueries, radius);
+			Console.log("Measured recall of the kernel index at " + radius + " sigmas: " + recall);
+		}
+		start = endStage("kernel indexing", start);
+
+		PdfGradientSampler<DatasetPoint> stage2 = new PdfGradientSampler<>(stage1Points, kernelSigmas2);
+		stage2.setSinglePrecision(singlePrecision);
+		stage2.setKernelProfile(kernelProfile);
+		stage2.setParallelism(parallelism);
+		stage2.setRadiusInSigmas(pdfRadius);
+		stage2.setMetrics(metrics);
 		// we use the full dataset to calculate the PDF at each point
 		List<SampledPdfPoint> stage2Points = stage2.samplePdf(kernelsIdx);
 
 		Console.log("Calculation of PDF sampling completed");
+		metrics.add("pdf samples", stage2Points.size());
+		start = endStage("pdf sampling", start);
 		
 
 		// --------- Stage 3: Identification of local maxima. ---------
 		Console.log("Looking for local maxima");
 
-		IndexedDataset<SampledPdfPoint> sampledIdx = new IndexedDataset<>(stage2Points, sigmas, 2, 2);
-		sampledIdx.indexData();
+		SpatialIndex<SampledPdfPoint> sampledIdx = indexType.create(stage2Points, kernelSigmas, 2, 2,
+				singlePrecision);
+		sampledIdx.indexData(parallelIndexing);
 
-		PdfLocalMaximaSearch stage3 = new PdfLocalMaximaSearch(sigmas2, locMaxDistanceThreshold);
-		localMaximaIdx = new IndexedDataset<>(stage3.getLocalMaxima(sampledIdx), sigmas, 2, 2);
-		localMaximaIdx.indexData();
+		PdfLocalMaximaSearch stage3 = new PdfLocalMaximaSearch(kernelSigmas2, locMaxDistanceThreshold);
+		stage3.setParallelism(parallelism);
+		stage3.setUseNeighborGraph(neighborGraph);
+		stage3.setMetrics(metrics);
+		localMaximaIdx = indexType.create(stage3.getLocalMaxima(sampledIdx), kernelSigmas, 2, 2,
+				singlePrecision);
+		localMaximaIdx.indexData(parallelIndexing);
 
 		Console.log(localMaximaIdx.getAll().size() + " local maxima found");
+		metrics.add("local maxima found", localMaximaIdx.getAll().size());
+		start = endStage("local maxima", start);
 
 		// --------- Stage 4: Decimate PDF smaples ---------
 		// The purposes of this decimation are:
@@ -191,7 +379,9 @@ public class SgMac implements Mac {
 
 		if (targetSamplePoints >= stage2Points.size()) {
 			Console.log("No further resampling is required");
-			sampledPdfIdx = new IndexedDataset<>(stage2Points, sigmas, 2, 2);
+			sampledPdfIdx = indexType.create(stage2Points, kernelSigmas, 2, 2,
+				singlePrecision);
+			sampledPdfIdx.indexData(parallelIndexing);
 		} else {
 			Console.log("Selecting points for resampling");
 			double ratio = (1.0 * targetSamplePoints) / stage2Points.size();
@@ -202,12 +392,58 @@ public class SgMac implements Mac {
 
 			Console.log("Selection of " + samples.size() + " points completed");
 
-			sampledPdfIdx = new IndexedDataset<>(samples, sigmas, 2, 2);
+			sampledPdfIdx = indexType.create(samples, kernelSigmas, 2, 2, singlePrecision);
+			sampledPdfIdx.indexData(parallelIndexing);
 		}
+		endStage("resampling", start);
 
 		initialized = true;
 	}
 
+	// Space where the stages run, depending on the whitening
+	protected void setUpSpace() {
+		whitener = whitening ? new Whitening(sigmas) : null;
+		kernelSigmas = whitening ? whitener.getUnitSigmas() : sigmas;
+		kernelSigmas2 = whitening ? whitener.getUnitSigmas() : sigmas2;
+	}
+
+	// Saves the parameters, PDF samples and local maxima of the
+	// initialization in a checkpoint file (see SgMacFile)
+	public void save(File file) throws IOException {
+		SgMacFile.write(this, file);
+	}
+
+	// Opens a checkpoint written by save: the SgMac is already initialized,
+	// so cluster() starts with the clustering stage
+	public static SgMac load(File file) throws IOException {
+		return SgMacFile.open(file);
+	}
+
+	// Initialization from the samples and local maxima of a checkpoint, in
+	// the space of the stages
+	protected void restore(List<SampledPdfPoint> samples, List<SampledPdfPoint> maxima) {
+
+		metrics.reset();
+		long start = System.nanoTime();
+		setUpSpace();
+		localMaximaIdx = indexType.create(maxima, kernelSigmas, 2, 2, singlePrecision);
+		localMaximaIdx.indexData(parallelIndexing);
+		sampledPdfIdx = indexType.create(samples, kernelSigmas, 2, 2, singlePrecision);
+		sampledPdfIdx.indexData(parallelIndexing);
+		metrics.add("pdf samples", samples.size());
+		metrics.add("local maxima found", maxima.size());
+		endStage("checkpoint indexing", start);
+		initialized = true;
+	}
+
+	// Adds the time since start to the timer of the stage, and logs it
+	protected long endStage(String stage, long start) {
+		long end = System.nanoTime();
+		metrics.addTime(stage, end - start);
+		Console.log("Stage " + stage + " completed in " + (end - start) / 1000000 + " ms");
+		return end;
+	}
+
 	public void cluster(List<DatasetPoint> points) {
 
 		if (!initialized) {
@@ -217,25 +453,114 @@ public class SgMac implements Mac {
 		// --------- Stage 4: Path calculation and classification of each data point into a cluster ---------
 		Console.log("Starting clustering...");
 
-		PathUpdater updater = new SampledGradientUpdater(sampledPdfIdx, localMaximaIdx, sigmas2, stepFactor,
-				locMaxDistanceThreshold);
+		SampledGradientUpdater updater = new SampledGradientUpdater(sampledPdfIdx, localMaximaIdx, kernelSigmas2,
+				stepFactor, locMaxDistanceThreshold);
 		updater.setMaxIterations(maxIterations);
-		ModalClustering clustering = new ModalClustering(updater, sigmas2, clusterPositionTolerance);
+		updater.setReuseNeighborhoods(reuseNeighborhoods);
+		AttractionCache cache = null;
+		if (attractionCellSize > 0) {
+			cache = new AttractionCache(kernelSigmas, attractionCellSize);
+			updater.setAttractionCache(cache);
+		}
+		long start = System.nanoTime();
+		ModeFinder modeFinder = updater;
+		if (sampleGraph) {
+			if (cache != null) {
+				throw new IllegalStateException("The attraction cache cannot be used with the sample graph");
+			}
+			SampleGraphUpdater graph = new SampleGraphUpdater(updater);
+			graph.setParallelism(parallelism);
+			graph.build();
+			Console.log(graph.getStats());
+			metrics.add("sample graph rounds", graph.getRounds());
+			start = endStage("sample graph", start);
+			modeFinder = graph;
+		}
+		ModalClustering clustering = new ModalClustering(modeFinder, sigmas2, clusterPositionTolerance);
+		clustering.setWhitening(whitener);
+		clustering.setParallelism(parallelism);
+		clustering.setMergeChainedModes(mergeChainedModes);
 
 		this.clusters = clustering.cluster(points);
 
 		Console.log("Clustering completed.");
+		endStage("clustering", start);
+		metrics.add("neighborhood queries", updater.getNeighborhoodQueries());
+		metrics.add("neighborhoods reused", updater.getNeighborhoodsReused());
+		if (cache != null) {
+			metrics.add("attraction cache paths", cache.getPaths());
+			metrics.add("attraction cache hits", cache.getHits());
+			metrics.add("attraction cache iterations saved", cache.getIterationsSaved());
+			Console.log(cache.getStats());
+		}
+		Console.log(metrics.report());
 
 		// print convergence stats
-		Console.log(updater.getConvergenceStats());
+		Console.log(modeFinder.getConvergenceStats());
 
 	}
 
+	/**
+	 * Id of the cluster of a new point, i.e. the position in getLocalMaxima()
+	 * of the local maximum closest to the mode of its path, or
+	 * ClusterAssigner.UNASSIGNED if the path does not converge or its mode is
+	 * farther than locMaxDistanceThreshold from every local maximum. The
+	 * model is not modified, and points can be assigned from several threads.
+	 */
+	public int assign(Point point) {
+		return getAssigner().assign(point.getCoordinates());
+	}
+
+	/**
+	 * Ids of the clusters of all the rows of the store (see assign), using
+	 * the parallelism of the SgMac.
+	 */
+	public int[] assignBatch(PointStore store) {
+		return getAssigner().assignBatch(store, parallelism);
+	}
+
+	// Created on the first assignment; with the sample graph option, the
+	// graph is built then
+	protected ClusterAssigner getAssigner() {
+		ClusterAssigner result = assigner;
+		if (result == null) {
+			synchronized (this) {
+				result = assigner;
+				if (result == null) {
+					if (!initialized) {
+						throw new IllegalStateException("SgMac must be initialized or loaded before assigning points");
+					}
+					SampledGradientUpdater updater = new SampledGradientUpdater(sampledPdfIdx, localMaximaIdx,
+							kernelSigmas2, stepFactor, locMaxDistanceThreshold);
+					updater.setMaxIterations(maxIterations);
+					updater.setReuseNeighborhoods(reuseNeighborhoods);
+					ModeFinder modeFinder = updater;
+					if (sampleGraph) {
+						SampleGraphUpdater graph = new SampleGraphUpdater(updater);
+						graph.setParallelism(parallelism);
+						graph.build();
+						modeFinder = graph;
+					}
+					result = new ClusterAssigner(modeFinder, localMaximaIdx, kernelSigmas2, locMaxDistanceThreshold,
+							whitener);
+					assigner = result;
+				}
+			}
+		}
+		return result;
+	}
+
 	public List<SampledPdfPoint> getSampledPdf() {
+		if (whitener != null) {
+			return whitener.unwhitenSamples(sampledPdfIdx.getAll());
+		}
 		return sampledPdfIdx.getAll();
 	}
 
 	public List<SampledPdfPoint> getLocalMaxima() {
+		if (whitener != null) {
+			return whitener.unwhitenSamples(localMaximaIdx.getAll());
+		}
 		return localMaximaIdx.getAll();
 	}
 
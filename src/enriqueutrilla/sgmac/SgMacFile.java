@@ -0,0 +1,237 @@
+package enriqueutrilla.sgmac;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SgMacFile.java
+ * Binary checkpoint of an initialized SgMac: its parameters, the PDF samples
+ * used by the clustering and which of them are local maxima, so that new
+ * data can be clustered against the same density without running the
+ * initialization again.
+ * Samples are stored in the space where the stages run (whitened, if
+ * whitening was enabled), as contiguous blocks like a SampledPdfStore. When
+ * the file is opened they are read into a SampledPdfStore and the indexes of
+ * the samples and the local maxima are built again.
+ * Options that only affect how the clustering runs (parallelism, caches,
+ * sample graph...) are not stored, and can be set on the opened SgMac. The
+ * kernel profile is stored by name (see KernelProfile.forName).
+ * Sizes in the header are checked against the length of the file before
+ * anything is allocated, so a truncated or corrupt file fails with an
+ * IOException.
+ *
+ * Layout (big endian):
+ *   int magic, int version
+ *   int dim, double[dim] sigmas
+ *   double decimationRatio, int seed1, double locMaxDistanceThreshold,
+ *   int targetSamplePoints, int seed2, int maxIterations, double stepFactor,
+ *   double clusterPositionTolerance, UTF indexType, UTF kernelProfile,
+ *   boolean whitening, boolean singlePrecision
+ *   int nSamples
+ *   long[nSamples] ids
+ *   double[nSamples * dim] coordinates
+ *   double[nSamples] pdfValues
+ *   double or float (if singlePrecision) [nSamples * dim] gradients
+ *   int nLocalMaxima, int[nLocalMaxima] rows of the local maxima
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import enriqueutrilla.sgmac.dm.SampledPdfPoint;
+import enriqueutrilla.sgmac.dm.SampledPdfStore;
+import enriqueutrilla.sgmac.infra.IndexType;
+import enriqueutrilla.sgmac.util.KernelProfile;
+
+public class SgMacFile {
+
+	public static final int MAGIC = 0x53474d43; // "SGMC"
+	public static final int VERSION = 1;
+
+	public static void write(SgMac mac, File file) throws IOException {
+
+		if (!mac.initialized) {
+			throw new IllegalStateException("Only an initialized SgMac can be saved");
+		}
+		List<SampledPdfPoint> samples = mac.sampledPdfIdx.getAll();
+		List<SampledPdfPoint> maxima = mac.localMaximaIdx.getAll();
+		Map<SampledPdfPoint, Integer> rows = new IdentityHashMap<>(samples.size());
+		for (int i = 0; i < samples.size(); i++) {
+			rows.put(samples.get(i), i);
+		}
+		int dim = mac.sigmas.length;
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(dim);
+			for (int j = 0; j < dim; j++) {
+				out.writeDouble(mac.sigmas[j]);
+			}
+			out.writeDouble(mac.decimationRatio);
+			out.writeInt(mac.seed1);
+			out.writeDouble(mac.locMaxDistanceThreshold);
+			out.writeInt(mac.targetSamplePoints);
+			out.writeInt(mac.seed2);
+			out.writeInt(mac.maxIterations);
+			out.writeDouble(mac.stepFactor);
+			out.writeDouble(mac.clusterPositionTolerance);
+			out.writeUTF(mac.indexType.name());
+			out.writeUTF(mac.kernelProfile.getName());
+			out.writeBoolean(mac.whitening);
+			out.writeBoolean(mac.singlePrecision);
+
+			out.writeInt(samples.size());
+			for (SampledPdfPoint sample : samples) {
+				out.writeLong(sample.getId());
+			}
+			for (SampledPdfPoint sample : samples) {
+				double[] coordinates = sample.getCoordinates();
+				for (int j = 0; j < dim; j++) {
+					out.writeDouble(coordinates[j]);
+				}
+			}
+			for (SampledPdfPoint sample : samples) {
+				out.writeDouble(sample.getPdfValue());
+			}
+			for (SampledPdfPoint sample : samples) {
+				for (int j = 0; j < dim; j++) {
+					if (mac.singlePrecision) {
+						out.writeFloat((float) sample.getPdfGradient(j));
+					} else {
+						out.writeDouble(sample.getPdfGradient(j));
+					}
+				}
+			}
+
+			out.writeInt(maxima.size());
+			for (SampledPdfPoint maximum : maxima) {
+				Integer row = rows.get(maximum);
+				if (row == null) {
+					throw new IllegalStateException("Local maximum " + maximum.getId() + " is not one of the samples");
+				}
+				out.writeInt(row);
+			}
+		}
+	}
+
+	public static SgMac open(File file) throws IOException {
+
+		try (FileInputStream input = new FileInputStream(file)) {
+			// the header is read unbuffered, so that the position of the channel
+			// tells how much of the file is left for the samples
+			FileChannel channel = input.getChannel();
+			long length = channel.size();
+			DataInputStream header = new DataInputStream(input);
+			if (length < 8 || header.readInt() != MAGIC) {
+				throw new IOException("Not an SgMac checkpoint file: " + file);
+			}
+			int version = header.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported SgMac checkpoint file version " + version + ": " + file);
+			}
+			int dim = header.readInt();
+			if (dim <= 0 || dim > (length - channel.position()) / 8) {
+				throw new IOException("Invalid dimension " + dim + " in SgMac checkpoint file: " + file);
+			}
+			double[] sigmas = new double[dim];
+			for (int j = 0; j < dim; j++) {
+				sigmas[j] = header.readDouble();
+			}
+			SgMac mac = new SgMac(sigmas);
+			mac.decimationRatio = header.readDouble();
+			mac.seed1 = header.readInt();
+			mac.locMaxDistanceThreshold = header.readDouble();
+			mac.targetSamplePoints = header.readInt();
+			mac.seed2 = header.readInt();
+			mac.maxIterations = header.readInt();
+			mac.stepFactor = header.readDouble();
+			mac.clusterPositionTolerance = header.readDouble();
+			try {
+				mac.indexType = IndexType.valueOf(header.readUTF());
+				mac.kernelProfile = KernelProfile.forName(header.readUTF());
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid SgMac checkpoint file " + file + ": " + e.getMessage());
+			}
+			mac.whitening = header.readBoolean();
+			mac.singlePrecision = header.readBoolean();
+
+			// id, coordinates, PDF value and gradient of each sample, then the
+			// number of local maxima
+			int n = header.readInt();
+			long remaining = length - channel.position();
+			long sampleBytes = 8 + 8L * dim + 8 + (mac.singlePrecision ? 4L : 8L) * dim;
+			if (n < 0 || remaining < 4 || n > (remaining - 4) / sampleBytes || (long) n * dim > Integer.MAX_VALUE) {
+				throw new IOException("Invalid number of samples " + n + " (dimension " + dim
+						+ ") in SgMac checkpoint file of " + length + " bytes: " + file);
+			}
+			remaining -= 4 + n * sampleBytes;
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+			long[] ids = new long[n];
+			for (int i = 0; i < n; i++) {
+				ids[i] = in.readLong();
+			}
+			SampledPdfStore store = new SampledPdfStore(n, dim, mac.singlePrecision);
+			List<SampledPdfPoint> samples = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				double[] coordinates = new double[dim];
+				for (int j = 0; j < dim; j++) {
+					coordinates[j] = in.readDouble();
+				}
+				samples.add(new SampledPdfStore.Sample(store, i, ids[i], coordinates));
+			}
+			for (int i = 0; i < n; i++) {
+				store.setPdfValue(i, in.readDouble());
+			}
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < dim; j++) {
+					store.setGradient(i, j, mac.singlePrecision ? in.readFloat() : in.readDouble());
+				}
+			}
+
+			int nMaxima = in.readInt();
+			if (nMaxima < 0 || nMaxima > n || nMaxima > remaining / 4) {
+				throw new IOException("Invalid number of local maxima " + nMaxima + " in SgMac checkpoint file: "
+						+ file);
+			}
+			List<SampledPdfPoint> maxima = new ArrayList<>(nMaxima);
+			for (int k = 0; k < nMaxima; k++) {
+				int row = in.readInt();
+				if (row < 0 || row >= n) {
+					throw new IOException("Invalid local maximum row " + row + " in SgMac checkpoint file: " + file);
+				}
+				SampledPdfPoint maximum = samples.get(row);
+				maximum.setLocalMaximum(true);
+				maxima.add(maximum);
+			}
+
+			mac.restore(samples, maxima);
+			return mac;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package enriqueutrilla.sgmac.bench;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * AssignmentBenchmark.java
+ * Latency of SgMac.assign for single new points (percentiles over all the
+ * queries, after a warm up), with paths followed step by step and with the
+ * sample graph, and throughput of assignBatch with all the processors.
+ * Also checks that both calls return the same ids, and that the ids of the
+ * training points agree with their clusters in SgMac.cluster: points of the
+ * same cluster get the same id, points of different clusters different ids,
+ * except UNASSIGNED for the points whose paths do not converge or end in a
+ * new mode.
+ * Usage: AssignmentBenchmark [nPoints] [nQueries] [dim] [sigma]
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import enriqueutrilla.sgmac.SgMac;
+import enriqueutrilla.sgmac.dm.Cluster;
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.infra.ClusterAssigner;
+import enriqueutrilla.sgmac.util.Console;
+
+public class AssignmentBenchmark {
+
+	public static void main(String[] args) {
+
+		int nPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int nQueries = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		int dim = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+		double sigma = (args.length > 3) ? Double.parseDouble(args[3]) : 0.1;
+
+		List<DatasetPoint> points = SyntheticData.gaussianBlobs(nPoints, dim, 20, 1.0, 0);
+		List<DatasetPoint> queries = SyntheticData.gaussianBlobs(nQueries, dim, 20, 1.0, 1);
+		PointStore store = PointStore.fromPoints(queries, false);
+		PointStore training = PointStore.fromPoints(points, false);
+		double[] sigmas = SyntheticData.uniformSigmas(dim, sigma);
+
+		for (boolean sampleGraph : new boolean[] { false, true }) {
+			boolean enabled = Console.isEnabled();
+			Console.setEnabled(false);
+			SgMac mac = new SgMac(sigmas).withSampleGraph(sampleGraph).withParallelism(0);
+			mac.initialize(points);
+			mac.assign(queries.get(0));
+			mac.cluster(points);
+			int[] trainingIds = mac.assignBatch(training);
+			Console.setEnabled(enabled);
+
+			// warm up, then one timing per query
+			for (int i = 0; i < Math.min(nQueries, 2000); i++) {
+				mac.assign(queries.get(i));
+			}
+			long[] latencies = new long[nQueries];
+			int[] ids = new int[nQueries];
+			for (int i = 0; i < nQueries; i++) {
+				long start = System.nanoTime();
+				ids[i] = mac.assign(queries.get(i));
+				latencies[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(latencies);
+
+			long start = System.nanoTime();
+			int[] batchIds = mac.assignBatch(store);
+			double batchSeconds = (System.nanoTime() - start) / 1e9;
+
+			Console.log((sampleGraph ? "Sample graph" : "Paths") + ": " + mac.getLocalMaxima().size() + " clusters, latency"
+					+ String.format(" p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+							percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+							percentile(latencies, 0.999), latencies[nQueries - 1] / 1e3)
+					+ String.format(", batch %.0f points/s", nQueries / batchSeconds)
+					+ ", same ids: " + Arrays.equals(ids, batchIds)
+					+ ", training points agreeing with cluster(): "
+					+ countAgreeing(mac.getClusters(), points, trainingIds) + "/" + nPoints);
+		}
+	}
+
+	// Points whose id is the id of the first point of their cluster, and is
+	// not the id of another cluster (unless it is UNASSIGNED)
+	protected static int countAgreeing(List<Cluster> clusters, List<DatasetPoint> points, int[] ids) {
+		Map<Long, Integer> rows = new HashMap<>(2 * points.size());
+		for (int i = 0; i < points.size(); i++) {
+			rows.put(points.get(i).getId(), i);
+		}
+		Map<Integer, Cluster> clusterOfId = new HashMap<>();
+		int agreeing = 0;
+		for (Cluster cluster : clusters) {
+			Integer clusterId = null;
+			for (Point member : cluster.getMembers()) {
+				int id = ids[rows.get(((DatasetPoint) member).getId())];
+				if (clusterId == null) {
+					clusterId = id;
+				}
+				if (id == clusterId && (id == ClusterAssigner.UNASSIGNED
+						|| clusterOfId.computeIfAbsent(id, k -> cluster) == cluster)) {
+					agreeing++;
+				}
+			}
+		}
+		return agreeing;
+	}
+
+	// Percentile of the sorted latencies, in microseconds
+	protected static double percentile(long[] sorted, double fraction) {
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e3;
+	}
+}
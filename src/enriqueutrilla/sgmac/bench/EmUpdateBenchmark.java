@@ -0,0 +1,123 @@
+package enriqueutrilla.sgmac.bench;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * EmUpdateBenchmark.java
+ * Time per ModalEmUpdater.update with each index backend, on the same
+ * synthetic data, stored as a list of points and as a PointStore. The JVM
+ * gives no access to hardware counters, so the scan cost of each layout is
+ * also reported as the number of contiguous memory ranges the kernels of an
+ * update are read from: runs of consecutive rows of the PointStore, runs of
+ * consecutive positions of the cell-ordered copy of the Z-order grid, and
+ * one range per kernel for a list (each point has its own array). Run it
+ * under "perf stat -e cache-misses" to get the cache miss counts.
+ * Usage: EmUpdateBenchmark [nPoints] [dim] [nUpdates]
+ */
+
+import java.util.Arrays;
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PathPoint;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.infra.FlatGridIndexedDataset;
+import enriqueutrilla.sgmac.infra.IndexType;
+import enriqueutrilla.sgmac.infra.ModalEmUpdater;
+import enriqueutrilla.sgmac.infra.RowVisitor;
+import enriqueutrilla.sgmac.infra.SpatialIndex;
+import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.KernelProfile;
+
+public class EmUpdateBenchmark {
+
+	public static void main(String[] args) {
+
+		int nPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+		int dim = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+		int nUpdates = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+
+		List<DatasetPoint> points = SyntheticData.gaussianBlobs(nPoints, dim, 20, 1.0, 0);
+		List<DatasetPoint> stored = PointStore.fromPoints(points, false).asList();
+		double[] sigmas = SyntheticData.uniformSigmas(dim, 0.1);
+		double[] sigmas2 = new double[dim];
+		for (int j = 0; j < dim; j++) {
+			sigmas2[j] = sigmas[j] * sigmas[j];
+		}
+		double radius = KernelProfile.gaussian().getSupportRadius();
+
+		for (List<DatasetPoint> data : Arrays.asList(points, stored)) {
+			String layout = (data == stored) ? "PointStore" : "list";
+			for (IndexType type : IndexType.values()) {
+				boolean logEnabled = Console.isEnabled();
+				Console.setEnabled(false);
+				SpatialIndex<DatasetPoint> index = type.create(data, sigmas, 2, 2);
+				index.indexData();
+				Console.setEnabled(logEnabled);
+				ModalEmUpdater updater = new ModalEmUpdater(index, sigmas2);
+				FlatGridIndexedDataset<DatasetPoint> copy = (index instanceof FlatGridIndexedDataset
+						&& ((FlatGridIndexedDataset<DatasetPoint>) index).getCellCoordinates() != null)
+								? (FlatGridIndexedDataset<DatasetPoint>) index : null;
+
+				// warm up, then measure
+				long elapsed = 0;
+				for (int round = 0; round < 2; round++) {
+					long start = System.nanoTime();
+					for (int i = 0; i < nUpdates; i++) {
+						updater.update(new PathPoint(points.get(getStart(i, nPoints))));
+					}
+					elapsed = System.nanoTime() - start;
+				}
+
+				RangeCounter counter = new RangeCounter();
+				for (int i = 0; i < nUpdates; i++) {
+					counter.last = -2;
+					double[] x = points.get(getStart(i, nPoints)).getCoordinates();
+					if (copy != null) {
+						copy.visitNeighborhoodPositions(x, radius, counter);
+					} else {
+						index.visitNeighborhoodRows(x, radius, counter);
+					}
+				}
+				long ranges = (copy != null || data == stored) ? counter.ranges : counter.kernels;
+
+				Console.log(type + " (" + layout + "): " + elapsed / nUpdates / 1000.0 + " us per update, "
+						+ String.format("%.1f memory ranges for %.1f kernels per update", 1.0 * ranges / nUpdates,
+								1.0 * counter.kernels / nUpdates));
+			}
+		}
+	}
+
+	protected static int getStart(int i, int nPoints) {
+		return (int) ((i * 104729L) % nPoints);
+	}
+
+	// Runs of consecutive rows (or positions) among the ones visited
+	protected static class RangeCounter implements RowVisitor {
+		int last;
+		long ranges = 0;
+		long kernels = 0;
+
+		@Override
+		public boolean visit(int row) {
+			if (row != last + 1) {
+				ranges++;
+			}
+			last = row;
+			kernels++;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package enriqueutrilla.sgmac.bench;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IndexBenchmark.java
+ * Comparison of the spatial index backends on synthetic data of 2 to 10
+ * dimensions: build time, query time and number of candidates returned for
+ * the radius used by the EM updater (8 sigmas), versus the number of points
+ * really inside the radius.
+ * Also checks that the recall of the random projection index, measured
+ * against a KD-tree, is the same with the points in a list and in a
+ * PointStore.
+ * Usage: IndexBenchmark [nPoints] [nQueries] [radiusInSigmas]
+ */
+
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.infra.IndexType;
+import enriqueutrilla.sgmac.infra.RandomProjectionIndex;
+import enriqueutrilla.sgmac.infra.SpatialIndex;
+import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.Distances;
+
+public class IndexBenchmark {
+
+	public static void main(String[] args) {
+
+		int nPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int nQueries = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+		double radius = (args.length > 2) ? Double.parseDouble(args[2]) : 8;
+
+		for (int dim = 2; dim <= 10; dim++) {
+			List<DatasetPoint> points = SyntheticData.gaussianBlobs(nPoints, dim, 10, 1.0, dim);
+			double[] sigmas = SyntheticData.uniformSigmas(dim, 0.25);
+			double[] sigmas2 = new double[dim];
+			for (int j = 0; j < dim; j++) {
+				sigmas2[j] = sigmas[j] * sigmas[j];
+			}
+
+			for (IndexType type : IndexType.values()) {
+				boolean logEnabled = Console.isEnabled();
+				Console.setEnabled(false);
+				SpatialIndex<DatasetPoint> index = type.create(points, sigmas, 2, 2);
+				long buildStart = System.nanoTime();
+				index.indexData();
+				long buildTime = System.nanoTime() - buildStart;
+				Console.setEnabled(logEnabled);
+
+				long candidates = 0;
+				long inside = 0;
+				long queryStart = System.nanoTime();
+				for (int q = 0; q < nQueries; q++) {
+					double[] query = points.get((int) ((q * 7919L) % nPoints)).getCoordinates();
+					for (DatasetPoint point : index.getNeighborhood(query, radius)) {
+						candidates++;
+						if (Distances.mahalanobis(query, point.getCoordinates(), sigmas2) <= radius) {
+							inside++;
+						}
+					}
+				}
+				long queryTime = System.nanoTime() - queryStart;
+
+				Console.log(dim + "D " + type + ": build " + buildTime / 1000000 + " ms, query "
+						+ queryTime / nQueries / 1000 + " us, candidates " + candidates / nQueries
+						+ ", inside radius " + inside / nQueries);
+			}
+
+			double listRecall = measureRecall(points, sigmas, nQueries, radius);
+			double storeRecall = measureRecall(PointStore.fromPoints(points, false).asList(), sigmas, nQueries, radius);
+			Console.log(dim + "D " + IndexType.RANDOM_PROJECTION + ": recall " + listRecall + " (list), "
+					+ storeRecall + " (PointStore), same recall: " + (listRecall == storeRecall));
+		}
+	}
+
+	protected static double measureRecall(List<DatasetPoint> points, double[] sigmas, int nQueries, double radius) {
+		boolean logEnabled = Console.isEnabled();
+		Console.setEnabled(false);
+		RandomProjectionIndex<DatasetPoint> index = new RandomProjectionIndex<>(points, sigmas);
+		index.indexData();
+		double recall = index.measureRecall(nQueries, radius);
+		Console.setEnabled(logEnabled);
+		return recall;
+	}
+}
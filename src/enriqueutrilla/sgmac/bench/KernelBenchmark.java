@@ -0,0 +1,87 @@
+package enriqueutrilla.sgmac.bench;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * KernelBenchmark.java
+ * Mode seeking throughput (EM iterations per second) with each kernel
+ * profile on the same synthetic data, starting from a subset of the points.
+ * Compact support kernels retrieve and evaluate fewer kernels per
+ * iteration, but may need a different number of iterations to converge, so
+ * both numbers are reported.
+ * Usage: KernelBenchmark [nPoints] [dim] [nPaths] [radiusInSigmas]
+ */
+
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PathPoint;
+import enriqueutrilla.sgmac.infra.IndexType;
+import enriqueutrilla.sgmac.infra.ModalEmUpdater;
+import enriqueutrilla.sgmac.infra.SpatialIndex;
+import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.KernelProfile;
+
+public class KernelBenchmark {
+
+	public static void main(String[] args) {
+
+		int nPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int dim = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+		int nPaths = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+		double radius = (args.length > 3) ? Double.parseDouble(args[3]) : 4;
+		int maxIterations = 1000;
+
+		List<DatasetPoint> points = SyntheticData.gaussianBlobs(nPoints, dim, 20, 1.0, 0);
+		double[] sigmas = SyntheticData.uniformSigmas(dim, 0.05);
+		double[] sigmas2 = new double[dim];
+		for (int j = 0; j < dim; j++) {
+			sigmas2[j] = sigmas[j] * sigmas[j];
+		}
+		SpatialIndex<DatasetPoint> index = IndexType.KD_TREE.create(points, sigmas, 2, 2);
+		index.indexData();
+
+		KernelProfile[] profiles = { KernelProfile.gaussian(), KernelProfile.truncatedGaussian(0.05),
+				KernelProfile.epanechnikov(radius), KernelProfile.biweight(radius) };
+
+		for (KernelProfile profile : profiles) {
+			ModalEmUpdater updater = new ModalEmUpdater(index, sigmas2, profile);
+
+			// warm up, then measure
+			for (int round = 0; round < 2; round++) {
+				long iterations = 0;
+				int converged = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < nPaths; i++) {
+					PathPoint current = new PathPoint(points.get((int) ((i * 104729L) % nPoints)));
+					int n = 0;
+					while (!current.isConverged() && n < maxIterations) {
+						updater.update(current);
+						n++;
+					}
+					iterations += n;
+					converged += current.isConverged() ? 1 : 0;
+				}
+				long elapsed = System.nanoTime() - start;
+				if (round == 1) {
+					Console.log(profile + " (support " + profile.getSupportRadius() + " sigmas): "
+							+ (long) (iterations * 1e9 / elapsed) + " iterations/s, "
+							+ (double) iterations / nPaths + " iterations per path, " + converged + "/" + nPaths
+							+ " converged, " + elapsed / nPaths / 1000 + " us per path");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package enriqueutrilla.sgmac.bench;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * PrecisionReport.java
+ * Compares the clusters found in single precision mode with the ones found
+ * in double precision, for BasicMac and SgMac on the same synthetic data.
+ * Each single precision cluster is matched to the double precision cluster
+ * with the closest mode (the clusters of non converged points are matched
+ * to each other), and the report gives the number of clusters of each run,
+ * the fraction of points whose cluster changed, the largest displacement of
+ * a mode (Mahalanobis distance, in sigmas) and the clustering times.
+ * The single precision runs get the points in a single precision PointStore,
+ * as an application loading its data in single precision would, so they
+ * cluster the store without any double copy of the points.
+ * Usage: PrecisionReport [nPoints] [dim]
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import enriqueutrilla.sgmac.BasicMac;
+import enriqueutrilla.sgmac.SgMac;
+import enriqueutrilla.sgmac.dm.Cluster;
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.Distances;
+
+public class PrecisionReport {
+
+	public static void main(String[] args) {
+
+		int nPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int dim = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+
+		List<DatasetPoint> points = SyntheticData.gaussianBlobs(nPoints, dim, 10, 1.0, 0);
+		double[] sigmas = SyntheticData.uniformSigmas(dim, 0.3);
+		double[] sigmas2 = new double[dim];
+		for (int j = 0; j < dim; j++) {
+			sigmas2[j] = sigmas[j] * sigmas[j];
+		}
+
+		List<DatasetPoint> floatPoints = PointStore.fromPoints(points, false, true).asList();
+
+		boolean logEnabled = Console.isEnabled();
+		long[] times = new long[4];
+		Console.setEnabled(false);
+
+		times[0] = System.nanoTime();
+		BasicMac basicDouble = new BasicMac(sigmas);
+		basicDouble.cluster(points);
+		times[0] = System.nanoTime() - times[0];
+
+		times[1] = System.nanoTime();
+		BasicMac basicFloat = new BasicMac(sigmas).withSinglePrecision(true);
+		basicFloat.cluster(floatPoints);
+		times[1] = System.nanoTime() - times[1];
+
+		times[2] = System.nanoTime();
+		SgMac sgDouble = new SgMac(sigmas);
+		sgDouble.cluster(points);
+		times[2] = System.nanoTime() - times[2];
+
+		times[3] = System.nanoTime();
+		SgMac sgFloat = new SgMac(sigmas).withSinglePrecision(true);
+		sgFloat.cluster(floatPoints);
+		times[3] = System.nanoTime() - times[3];
+
+		Console.setEnabled(logEnabled);
+		report("Basic MAC", basicDouble.getClusters(), basicFloat.getClusters(), sigmas2, nPoints, times[0],
+				times[1]);
+		report("SG-MAC", sgDouble.getClusters(), sgFloat.getClusters(), sigmas2, nPoints, times[2], times[3]);
+	}
+
+	protected static void report(String name, List<Cluster> reference, List<Cluster> single, double[] sigmas2,
+			int nPoints, long referenceTime, long singleTime) {
+
+		Map<Long, Integer> referenceLabels = getLabels(reference);
+		double maxModeDisplacement = 0;
+		int changed = 0;
+		for (Cluster cluster : single) {
+			int match = -1;
+			double matchDistance = Double.MAX_VALUE;
+			for (int c = 0; c < reference.size(); c++) {
+				Point mode = reference.get(c).getMode();
+				if (cluster.getMode() == null || mode == null) {
+					if (cluster.getMode() == mode) {
+						match = c;
+						matchDistance = 0;
+					}
+				} else {
+					double distance = Distances.mahalanobis(cluster.getMode(), mode, sigmas2);
+					if (distance < matchDistance) {
+						match = c;
+						matchDistance = distance;
+					}
+				}
+			}
+			if (match >= 0) {
+				maxModeDisplacement = Math.max(maxModeDisplacement, matchDistance);
+			}
+			for (Point member : cluster.getMembers()) {
+				Integer label = referenceLabels.get(((DatasetPoint) member).getId());
+				if (label == null || label != match) {
+					changed++;
+				}
+			}
+		}
+
+		Console.log(name + ": " + reference.size() + " clusters in double precision, " + single.size()
+				+ " in single precision");
+		Console.log(name + ": " + changed + " of " + nPoints + " points (" + (100.0 * changed / nPoints)
+				+ "%) changed cluster, largest mode displacement " + maxModeDisplacement + " sigmas");
+		Console.log(name + ": " + referenceTime / 1000000 + " ms in double precision, " + singleTime / 1000000
+				+ " ms in single precision");
+	}
+
+	protected static Map<Long, Integer> getLabels(List<Cluster> clusters) {
+		Map<Long, Integer> labels = new HashMap<>();
+		for (int c = 0; c < clusters.size(); c++) {
+			for (Point member : clusters.get(c).getMembers()) {
+				labels.put(((DatasetPoint) member).getId(), c);
+			}
+		}
+		return labels;
+	}
+}
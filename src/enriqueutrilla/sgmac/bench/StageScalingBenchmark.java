@@ -0,0 +1,87 @@
+package enriqueutrilla.sgmac.bench;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * StageScalingBenchmark.java
+ * Time of each SG-MAC stage with 1, 2, 4... threads up to the number of
+ * available processors, on the same synthetic data. Also checks that the
+ * clusters are the same for every number of threads.
+ * Usage: StageScalingBenchmark [nPoints] [dim] [sigma]
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import enriqueutrilla.sgmac.SgMac;
+import enriqueutrilla.sgmac.dm.Cluster;
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.Metrics;
+
+public class StageScalingBenchmark {
+
+	public static void main(String[] args) {
+
+		int nPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int dim = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+		double sigma = (args.length > 2) ? Double.parseDouble(args[2]) : 0.1;
+
+		List<DatasetPoint> points = SyntheticData.gaussianBlobs(nPoints, dim, 20, 1.0, 0);
+		double[] sigmas = SyntheticData.uniformSigmas(dim, sigma);
+		String[] stages = { "kernel indexing", "pdf sampling", "local maxima", "resampling", "clustering" };
+
+		List<Integer> threads = new ArrayList<>();
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (int n = 1; n < processors; n *= 2) {
+			threads.add(n);
+		}
+		threads.add(processors);
+
+		List<List<Long>> reference = null;
+		for (int n : threads) {
+			boolean enabled = Console.isEnabled();
+			Console.setEnabled(false);
+			SgMac mac = new SgMac(sigmas).withParallelism(n);
+			mac.cluster(points);
+			Console.setEnabled(enabled);
+
+			List<List<Long>> members = getMembers(mac.getClusters());
+			if (reference == null) {
+				reference = members;
+			}
+			Metrics metrics = mac.getMetrics();
+			StringBuilder line = new StringBuilder(n + " threads:");
+			for (String stage : stages) {
+				line.append(String.format(" %s %.0f ms,", stage, metrics.getTimeMillis(stage)));
+			}
+			line.append(" same clusters: ").append(members.equals(reference));
+			Console.log(line.toString());
+		}
+	}
+
+	protected static List<List<Long>> getMembers(List<Cluster> clusters) {
+		List<List<Long>> result = new ArrayList<>();
+		for (Cluster cluster : clusters) {
+			List<Long> ids = new ArrayList<>();
+			for (Point point : cluster.getMembers()) {
+				ids.add(((DatasetPoint) point).getId());
+			}
+			result.add(ids);
+		}
+		return result;
+	}
+}
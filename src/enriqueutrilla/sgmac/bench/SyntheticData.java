@@ -0,0 +1,60 @@
+package enriqueutrilla.sgmac.bench;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SyntheticData.java
+ * Generation of reproducible synthetic datasets for the benchmarks:
+ * a mixture of isotropic Gaussian blobs with random centers.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+
+public class SyntheticData {
+
+	public static List<DatasetPoint> gaussianBlobs(int nPoints, int dim, int nBlobs, double spread, long seed) {
+
+		Random random = new Random(seed);
+		double[][] centers = new double[nBlobs][dim];
+		for (int b = 0; b < nBlobs; b++) {
+			for (int j = 0; j < dim; j++) {
+				centers[b][j] = random.nextDouble() * 10 * spread;
+			}
+		}
+
+		List<DatasetPoint> points = new ArrayList<>(nPoints);
+		for (int i = 0; i < nPoints; i++) {
+			double[] center = centers[random.nextInt(nBlobs)];
+			double[] coordinates = new double[dim];
+			for (int j = 0; j < dim; j++) {
+				coordinates[j] = center[j] + random.nextGaussian() * spread;
+			}
+			points.add(new DatasetPoint(i, coordinates));
+		}
+		return points;
+	}
+
+	public static double[] uniformSigmas(int dim, double sigma) {
+		double[] sigmas = new double[dim];
+		for (int j = 0; j < dim; j++) {
+			sigmas[j] = sigma;
+		}
+		return sigmas;
+	}
+}
@@ -0,0 +1,104 @@
+package enriqueutrilla.sgmac.dm;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * DoublePointStore.java
+ * PointStore with double coordinates, stored in NIO buffers that can be on
+ * the heap, off-heap (direct buffers) or memory mapped from a file.
+ * A single buffer cannot hold more than 2 GB, so the rows are split in chunks
+ * of a power of two rows.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+
+public class DoublePointStore extends PointStore {
+
+	protected final int chunkShift;
+	protected final int chunkMask;
+	protected final LongBuffer[] idChunks;
+	protected final DoubleBuffer[] coordinateChunks;
+
+	public DoublePointStore(int size, int dim, boolean offHeap) {
+		super(size, dim);
+		this.chunkShift = getChunkShift(8 * Math.max(1, dim));
+		this.chunkMask = (1 << chunkShift) - 1;
+
+		int nChunks = getNChunks(size, chunkShift);
+		idChunks = new LongBuffer[nChunks];
+		coordinateChunks = new DoubleBuffer[nChunks];
+		for (int c = 0; c < nChunks; c++) {
+			int rows = (int) Math.min(1L << chunkShift, size - ((long) c << chunkShift));
+			if (offHeap) {
+				idChunks[c] = ByteBuffer.allocateDirect(8 * rows).order(ByteOrder.nativeOrder()).asLongBuffer();
+				coordinateChunks[c] = ByteBuffer.allocateDirect(8 * rows * dim).order(ByteOrder.nativeOrder())
+						.asDoubleBuffer();
+			} else {
+				idChunks[c] = LongBuffer.wrap(new long[rows]);
+				coordinateChunks[c] = DoubleBuffer.wrap(new double[rows * dim]);
+			}
+		}
+	}
+
+	/**
+	 * Store over existing buffers (e.g. memory mapped), split in chunks of
+	 * 2^chunkShift rows as given by getChunkShift(8 * dim).
+	 */
+	public DoublePointStore(int size, int dim, LongBuffer[] idChunks, DoubleBuffer[] coordinateChunks) {
+		super(size, dim);
+		this.chunkShift = getChunkShift(8 * Math.max(1, dim));
+		this.chunkMask = (1 << chunkShift) - 1;
+		this.idChunks = idChunks;
+		this.coordinateChunks = coordinateChunks;
+	}
+
+	@Override
+	public boolean isOffHeap() {
+		return idChunks.length > 0 && idChunks[0].isDirect();
+	}
+
+	@Override
+	public long getId(int row) {
+		return idChunks[row >>> chunkShift].get(row & chunkMask);
+	}
+
+	@Override
+	public double get(int row, int coordIndex) {
+		return coordinateChunks[row >>> chunkShift].get((row & chunkMask) * dim + coordIndex);
+	}
+
+	@Override
+	public double[] getCoordinates(int row, double[] result) {
+		DoubleBuffer chunk = coordinateChunks[row >>> chunkShift];
+		int offset = (row & chunkMask) * dim;
+		for (int j = 0; j < dim; j++) {
+			result[j] = chunk.get(offset + j);
+		}
+		return result;
+	}
+
+	@Override
+	public void set(int row, long id, double[] coordinates) {
+		idChunks[row >>> chunkShift].put(row & chunkMask, id);
+		DoubleBuffer chunk = coordinateChunks[row >>> chunkShift];
+		int offset = (row & chunkMask) * dim;
+		for (int j = 0; j < dim; j++) {
+			chunk.put(offset + j, coordinates[j]);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package enriqueutrilla.sgmac.dm;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * FloatPointStore.java
+ * PointStore with single precision coordinates, which halves the memory and
+ * the bandwidth needed by the kernel loops. Coordinates are rounded to float
+ * when stored and widened to double when read, so all the arithmetic on them
+ * is still done in double. Ids are kept as longs.
+ * As in DoublePointStore, buffers can be on the heap or off-heap.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
+public class FloatPointStore extends PointStore {
+
+	protected final int chunkShift;
+	protected final int chunkMask;
+	protected final LongBuffer[] idChunks;
+	protected final FloatBuffer[] coordinateChunks;
+
+	public FloatPointStore(int size, int dim, boolean offHeap) {
+		super(size, dim);
+		// the ids take more bytes per row than the coordinates if dim is 1
+		this.chunkShift = getChunkShift(Math.max(Long.BYTES, (long) Float.BYTES * Math.max(1, dim)));
+		this.chunkMask = (1 << chunkShift) - 1;
+
+		int nChunks = getNChunks(size, chunkShift);
+		idChunks = new LongBuffer[nChunks];
+		coordinateChunks = new FloatBuffer[nChunks];
+		for (int c = 0; c < nChunks; c++) {
+			int rows = (int) Math.min(1L << chunkShift, size - ((long) c << chunkShift));
+			if (offHeap) {
+				idChunks[c] = ByteBuffer.allocateDirect(Math.toIntExact((long) Long.BYTES * rows))
+						.order(ByteOrder.nativeOrder()).asLongBuffer();
+				coordinateChunks[c] = ByteBuffer.allocateDirect(Math.toIntExact((long) Float.BYTES * rows * dim))
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			} else {
+				idChunks[c] = LongBuffer.wrap(new long[rows]);
+				coordinateChunks[c] = FloatBuffer.wrap(new float[Math.toIntExact((long) rows * dim)]);
+			}
+		}
+	}
+
+	@Override
+	public boolean isSinglePrecision() {
+		return true;
+	}
+
+	@Override
+	public boolean isOffHeap() {
+		return idChunks.length > 0 && idChunks[0].isDirect();
+	}
+
+	@Override
+	public long getId(int row) {
+		return idChunks[row >>> chunkShift].get(row & chunkMask);
+	}
+
+	@Override
+	public double get(int row, int coordIndex) {
+		return coordinateChunks[row >>> chunkShift].get((row & chunkMask) * dim + coordIndex);
+	}
+
+	@Override
+	public double[] getCoordinates(int row, double[] result) {
+		FloatBuffer chunk = coordinateChunks[row >>> chunkShift];
+		int offset = (row & chunkMask) * dim;
+		for (int j = 0; j < dim; j++) {
+			result[j] = chunk.get(offset + j);
+		}
+		return result;
+	}
+
+	@Override
+	public void set(int row, long id, double[] coordinates) {
+		idChunks[row >>> chunkShift].put(row & chunkMask, id);
+		FloatBuffer chunk = coordinateChunks[row >>> chunkShift];
+		int offset = (row & chunkMask) * dim;
+		for (int j = 0; j < dim; j++) {
+			chunk.put(offset + j, (float) coordinates[j]);
+		}
+	}
+}
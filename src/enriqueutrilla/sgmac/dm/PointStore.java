@@ -0,0 +1,154 @@
+package enriqueutrilla.sgmac.dm;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * PointStore.java
+ * Columnar (struct of arrays) storage of a dataset: ids and coordinates of
+ * all the points in contiguous blocks, addressed by an int row index,
+ * instead of one DatasetPoint object (plus its coordinates array) per point.
+ * asList() adapts the store to the List<DatasetPoint> API used by the rest
+ * of the code; DatasetPoints are created on demand, so code that knows the
+ * store should read ids and coordinates by row instead.
+ */
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+public abstract class PointStore {
+
+	protected final int size;
+	protected final int dim;
+
+	protected PointStore(int size, int dim) {
+		this.size = size;
+		this.dim = dim;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int dim() {
+		return dim;
+	}
+
+	/**
+	 * True if the coordinates are stored in single precision. They are still
+	 * returned as doubles, so computations with them stay in double.
+	 */
+	public boolean isSinglePrecision() {
+		return false;
+	}
+
+	/**
+	 * True if the data is stored outside the Java heap (direct or mapped buffers).
+	 */
+	public abstract boolean isOffHeap();
+
+	public abstract long getId(int row);
+
+	public abstract double get(int row, int coordIndex);
+
+	public abstract void set(int row, long id, double[] coordinates);
+
+	public double[] getCoordinates(int row, double[] result) {
+		for (int j = 0; j < dim; j++) {
+			result[j] = get(row, j);
+		}
+		return result;
+	}
+
+	public DatasetPoint getPoint(int row) {
+		return new DatasetPoint(getId(row), getCoordinates(row, new double[dim]));
+	}
+
+	public PointList asList() {
+		return new PointList(this);
+	}
+
+	/**
+	 * Returns the store behind a list created by asList(), or null for any
+	 * other list.
+	 */
+	public static PointStore of(List<?> list) {
+		return (list instanceof PointList) ? ((PointList) list).getStore() : null;
+	}
+
+	public static PointStore fromPoints(List<? extends DatasetPoint> points, boolean offHeap) {
+		return fromPoints(points, offHeap, false);
+	}
+
+	public static PointStore allocate(int size, int dim, boolean offHeap, boolean singlePrecision) {
+		return singlePrecision ? new FloatPointStore(size, dim, offHeap) : new DoublePointStore(size, dim, offHeap);
+	}
+
+	public static PointStore fromPoints(List<? extends DatasetPoint> points, boolean offHeap,
+			boolean singlePrecision) {
+		int dim = points.isEmpty() ? 0 : points.get(0).dim();
+		PointStore store = allocate(points.size(), dim, offHeap, singlePrecision);
+		for (int i = 0; i < points.size(); i++) {
+			DatasetPoint point = points.get(i);
+			store.set(i, point.getId(), point.getCoordinates());
+		}
+		return store;
+	}
+
+	/**
+	 * Largest power of two of rows whose coordinates fit in a single buffer
+	 * (buffers are indexed by int), for chunked implementations.
+	 */
+	public static int getChunkShift(long bytesPerRow) {
+		int shift = 30;
+		while (shift > 0 && (1L << shift) * bytesPerRow > Integer.MAX_VALUE) {
+			shift--;
+		}
+		return shift;
+	}
+
+	public static int getNChunks(int size, int chunkShift) {
+		return (int) ((size + (1L << chunkShift) - 1) >> chunkShift);
+	}
+
+	/**
+	 * Read-only List<DatasetPoint> view of a PointStore.
+	 */
+	public static class PointList extends AbstractList<DatasetPoint> implements RandomAccess {
+
+		protected final PointStore store;
+
+		public PointList(PointStore store) {
+			this.store = store;
+		}
+
+		public PointStore getStore() {
+			return store;
+		}
+
+		@Override
+		public DatasetPoint get(int index) {
+			if (index < 0 || index >= store.size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + store.size);
+			}
+			return store.getPoint(index);
+		}
+
+		@Override
+		public int size() {
+			return store.size;
+		}
+	}
+}
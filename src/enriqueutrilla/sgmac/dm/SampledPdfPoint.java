@@ -45,12 +45,16 @@ public class SampledPdfPoint extends DatasetPoint{
 	}
 	
 	public SampledPdfPoint(long id, double[] coordinates, double pdfValue, double[] pdfGradient) {
-		this(id, coordinates);
+		super(id, coordinates);
 		this.pdfValue = pdfValue;
 		this.pdfGradient = pdfGradient;
 		this.nContributions = 1;
 	}
 	
+	public double getPdfGradient(int coordIndex) {
+		return pdfGradient[coordIndex];
+	}
+	
 	public void setGradient(double[] pdfGradient) {
 		this.pdfGradient = pdfGradient;
 	}
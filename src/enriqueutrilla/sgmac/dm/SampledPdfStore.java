@@ -0,0 +1,154 @@
+package enriqueutrilla.sgmac.dm;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * SampledPdfStore.java
+ * Columnar storage of the PDF samples of SgMac: one array with the PDF values
+ * and one block with the gradients, row after row, in double or in single
+ * precision. The samples are written in place by the PdfGradientSampler and
+ * read through Sample views, which are plain SampledPdfPoints for the rest of
+ * the algorithm but keep no PDF value or gradient of their own.
+ */
+
+import java.io.Serializable;
+
+public class SampledPdfStore implements Serializable {
+
+	private static final long serialVersionUID = 6305148723417032907L;
+	protected final int size;
+	protected final int dim;
+	protected final double[] pdfValues;
+	protected final double[] gradients;
+	protected final float[] floatGradients;
+
+	public SampledPdfStore(int size, int dim, boolean singlePrecision) {
+		this.size = size;
+		this.dim = dim;
+		this.pdfValues = new double[size];
+		this.gradients = singlePrecision ? null : new double[size * dim];
+		this.floatGradients = singlePrecision ? new float[size * dim] : null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int dim() {
+		return dim;
+	}
+
+	public boolean isSinglePrecision() {
+		return floatGradients != null;
+	}
+
+	public double getPdfValue(int row) {
+		return pdfValues[row];
+	}
+
+	public void setPdfValue(int row, double pdfValue) {
+		pdfValues[row] = pdfValue;
+	}
+
+	public double getGradient(int row, int coordIndex) {
+		int offset = row * dim + coordIndex;
+		return (gradients != null) ? gradients[offset] : floatGradients[offset];
+	}
+
+	public void setGradient(int row, int coordIndex, double value) {
+		int offset = row * dim + coordIndex;
+		if (gradients != null) {
+			gradients[offset] = value;
+		} else {
+			floatGradients[offset] = (float) value;
+		}
+	}
+
+	/**
+	 * Copy of the gradient of a row, widened to double if needed.
+	 */
+	public double[] getGradient(int row) {
+		double[] gradient = new double[dim];
+		for (int j = 0; j < dim; j++) {
+			gradient[j] = getGradient(row, j);
+		}
+		return gradient;
+	}
+
+	/**
+	 * View of a row as a SampledPdfPoint, with the id and coordinates of the
+	 * point where the PDF was sampled.
+	 */
+	public Sample getSample(int row, DatasetPoint point) {
+		return new Sample(this, row, point.getId(), point.getCoordinates());
+	}
+
+	/**
+	 * SampledPdfPoint reading and writing its PDF value and gradient in a row
+	 * of the store. getPdfGradient() returns a copy, so callers reading it in
+	 * a loop should use getPdfGradient(int) instead.
+	 */
+	public static class Sample extends SampledPdfPoint {
+
+		private static final long serialVersionUID = -1846604316260380785L;
+		protected final SampledPdfStore store;
+		protected final int row;
+
+		public Sample(SampledPdfStore store, int row, long id, double[] coordinates) {
+			super(id, coordinates, 0, null);
+			this.store = store;
+			this.row = row;
+		}
+
+		public SampledPdfStore getStore() {
+			return store;
+		}
+
+		public int getRow() {
+			return row;
+		}
+
+		@Override
+		public double getPdfValue() {
+			return store.getPdfValue(row);
+		}
+
+		@Override
+		public double getPdfGradient(int coordIndex) {
+			return store.getGradient(row, coordIndex);
+		}
+
+		@Override
+		public double[] getPdfGradient() {
+			return store.getGradient(row);
+		}
+
+		@Override
+		public void setGradient(double[] pdfGradient) {
+			for (int j = 0; j < store.dim; j++) {
+				store.setGradient(row, j, pdfGradient[j]);
+			}
+		}
+
+		@Override
+		public void addContribution(double pdfValue, double[] pdfGradient) {
+			store.setPdfValue(row, store.getPdfValue(row) + pdfValue);
+			for (int j = 0; j < store.dim; j++) {
+				store.setGradient(row, j, store.getGradient(row, j) + pdfGradient[j]);
+			}
+			this.nContributions++;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package enriqueutrilla.sgmac.dm;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * TrackedPathPoint.java
+ * PathPoint that also keeps the state of an accelerated path between
+ * iterations: the PDF value and the plain (not extrapolated) update at the
+ * previous position, and the current step factor.
+ */
+
+public class TrackedPathPoint extends PathPoint {
+
+	private static final long serialVersionUID = 1L;
+
+	protected double stepFactor = 1;
+	protected double previousPdf = Double.NaN;
+	protected double[] previousUpdate = null;
+
+	public TrackedPathPoint(Point initialCoordinates) {
+		super(initialCoordinates);
+	}
+
+	public double getStepFactor() {
+		return stepFactor;
+	}
+
+	public void setStepFactor(double stepFactor) {
+		this.stepFactor = stepFactor;
+	}
+
+	public boolean hasPrevious() {
+		return previousUpdate != null;
+	}
+
+	public double getPreviousPdf() {
+		return previousPdf;
+	}
+
+	public double[] getPreviousUpdate() {
+		return previousUpdate;
+	}
+
+	public void setPrevious(double pdf, double[] update) {
+		this.previousPdf = pdf;
+		this.previousUpdate = update;
+	}
+
+	public void clearPrevious() {
+		this.previousPdf = Double.NaN;
+		this.previousUpdate = null;
+	}
+}
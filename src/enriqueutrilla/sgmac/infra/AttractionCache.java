@@ -0,0 +1,134 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * AttractionCache.java
+ * Memoization of the basins of attraction of the modes found so far.
+ * Space is divided in cells of a regular grid (cellSizeInSigmas sigmas wide
+ * along each coordinate); once a path converges, every cell it went through
+ * is marked with its mode, and any later path entering one of those cells
+ * stops right there with the same mode.
+ * This is an approximation: a cell crossed by the boundary between two
+ * basins may send a path to the wrong mode, so the cells should be small
+ * compared to sigma. Besides, when paths run in parallel the cells found
+ * first depend on the scheduling, so the results may change slightly with
+ * the number of threads.
+ * The cache records the number of paths, the hits and an estimate of the
+ * iterations saved (those the original path needed from the hit cell).
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import enriqueutrilla.sgmac.util.GridCell;
+
+public class AttractionCache {
+
+	protected final double[] cellSizes;
+	protected final Map<GridCell, Entry> cells = new ConcurrentHashMap<>();
+
+	protected final LongAdder paths = new LongAdder();
+	protected final LongAdder hits = new LongAdder();
+	protected final LongAdder iterationsSaved = new LongAdder();
+
+	public AttractionCache(double[] sigmas, double cellSizeInSigmas) {
+		this.cellSizes = new double[sigmas.length];
+		for (int j = 0; j < sigmas.length; j++) {
+			this.cellSizes[j] = cellSizeInSigmas * sigmas[j];
+		}
+	}
+
+	public GridCell getCell(double[] coordinates) {
+		return GridCell.of(coordinates, cellSizes);
+	}
+
+	/**
+	 * Known mode of the cell, or null if no converged path went through it.
+	 */
+	public Entry lookup(GridCell cell) {
+		return cells.get(cell);
+	}
+
+	/**
+	 * Marks the cells visited by a converged path with its mode. visited[i]
+	 * is the cell of the path before iteration i; remaining is the number of
+	 * iterations still needed from the last cell (0 unless the path itself
+	 * ended in a hit). The first path through a cell keeps it.
+	 */
+	public void register(List<GridCell> visited, double[] mode, int remaining) {
+		int n = visited.size();
+		for (int i = 0; i < n; i++) {
+			cells.putIfAbsent(visited.get(i), new Entry(mode, n - i + remaining));
+		}
+	}
+
+	public void recordPath(Entry hit) {
+		paths.increment();
+		if (hit != null) {
+			hits.increment();
+			iterationsSaved.add(hit.remaining);
+		}
+	}
+
+	public int size() {
+		return cells.size();
+	}
+
+	public long getPaths() {
+		return paths.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public double getHitRate() {
+		long paths = getPaths();
+		return (paths == 0) ? 0 : (double) getHits() / paths;
+	}
+
+	public long getIterationsSaved() {
+		return iterationsSaved.sum();
+	}
+
+	public String getStats() {
+		return "Attraction cache: " + getHits() + " hits in " + getPaths() + " paths ("
+				+ (int) (100 * getHitRate()) + "%), " + getIterationsSaved() + " iterations saved, " + size()
+				+ " cells";
+	}
+
+	public static class Entry {
+
+		protected final double[] mode;
+		protected final int remaining;
+
+		public Entry(double[] mode, int remaining) {
+			this.mode = mode;
+			this.remaining = remaining;
+		}
+
+		public double[] getMode() {
+			return mode;
+		}
+
+		// iterations from the cell to the mode in the path that registered it
+		public int getRemaining() {
+			return remaining;
+		}
+	}
+}
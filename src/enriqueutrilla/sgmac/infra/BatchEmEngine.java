@@ -0,0 +1,204 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BatchEmEngine.java
+ * Synchronous mode seeking for the paths of a ModalEmUpdater: instead of
+ * following each path to its mode, all the active paths advance one
+ * iteration per round. In each round the paths are grouped by cell, the
+ * kernels of each cell are gathered once, and the block is applied to every
+ * path of the cell. Converged paths drop out of the working set.
+ * Each path gets the same kernels, with the same profile, as the per-point
+ * ModalEmUpdater.update, so the modes are the same as following the paths
+ * one by one:
+ * - With a GridIndex (TREE, FLAT_GRID), whose queries only depend on the
+ *   cell of the query point, the paths are grouped by the cells of the
+ *   index, and the block is the neighborhood of any path in the cell. This
+ *   includes the kernels beyond the support radius that the index returns,
+ *   which the plain Gaussian does not ignore.
+ * - Other indexes only return the kernels inside the radius, so the paths
+ *   are grouped by the cells of a grid cellSizeInSigmas sigmas wide, the
+ *   block is queried at the center of the cell with the support radius plus
+ *   half the diagonal of the cell, and the kernels beyond the support radius
+ *   of each path are ignored (KernelProfile.withCutoff).
+ * The cells are processed in parallel; each path only depends on its own
+ * state, so the modes do not depend on the number of threads.
+ * The AttractionCache of the updater is not used.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import enriqueutrilla.sgmac.dm.PathPoint;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.util.GridCell;
+import enriqueutrilla.sgmac.util.KernelBatch;
+import enriqueutrilla.sgmac.util.KernelProfile;
+import enriqueutrilla.sgmac.util.Parallel;
+
+public class BatchEmEngine {
+
+	protected final ModalEmUpdater updater;
+	protected final double[] cellSizes;
+	protected final double blockRadius;
+	protected final GridIndex grid;
+	protected int parallelism = 1;
+	protected int batchSize = 1 << 16;
+	protected final ThreadLocal<KernelCollector> collectors;
+
+	protected final LongAdder blocks = new LongAdder();
+	protected final LongAdder steps = new LongAdder();
+
+	public BatchEmEngine(ModalEmUpdater updater, double cellSizeInSigmas) {
+		this.updater = updater;
+		double[] sigma2 = updater.getSigma2();
+		this.cellSizes = new double[sigma2.length];
+		for (int j = 0; j < sigma2.length; j++) {
+			this.cellSizes[j] = cellSizeInSigmas * Math.sqrt(sigma2[j]);
+		}
+		this.grid = (updater.getKernels() instanceof GridIndex) ? (GridIndex) updater.getKernels() : null;
+		KernelProfile profile = (grid != null) ? updater.getProfile() : updater.getProfile().withCutoff();
+		this.blockRadius = (grid != null) ? updater.getProfile().getSupportRadius()
+				: updater.getProfile().getSupportRadius() + 0.5 * cellSizeInSigmas * Math.sqrt(sigma2.length);
+		this.collectors = ThreadLocal.withInitial(() -> new KernelCollector(sigma2.length, profile));
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	// Number of threads processing the cells (0 or less for all the processors)
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	// Number of paths followed together (ModalClustering passes the points in
+	// batches of this size)
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Follows the paths from all the starting points to their modes (or
+	 * until the maximum iterations of the updater).
+	 */
+	public PathPoint[] findModes(Point[] starts) {
+
+		int n = starts.length;
+		PathPoint[] paths = new PathPoint[n];
+		int[] iterations = new int[n];
+		int[] active = new int[n];
+		for (int i = 0; i < n; i++) {
+			paths[i] = updater.createPathPoint(starts[i]);
+			active[i] = i;
+		}
+		int nActive = n;
+		int maxIterations = updater.getMaxIterations();
+
+		try (Parallel workers = new Parallel(parallelism)) {
+			while (nActive > 0) {
+
+				// group the active paths by cell: members of group g are
+				// groupMembers[groupStarts[g]..groupStarts[g + 1]]
+				Map<GridCell, Integer> groupOf = new HashMap<>();
+				List<GridCell> cells = new ArrayList<>();
+				int[] pathGroup = new int[nActive];
+				for (int k = 0; k < nActive; k++) {
+					GridCell cell = getCell(paths[active[k]].getCoordinates());
+					Integer group = groupOf.get(cell);
+					if (group == null) {
+						group = cells.size();
+						groupOf.put(cell, group);
+						cells.add(cell);
+					}
+					pathGroup[k] = group;
+				}
+				int nGroups = cells.size();
+				int[] groupStarts = new int[nGroups + 1];
+				for (int k = 0; k < nActive; k++) {
+					groupStarts[pathGroup[k] + 1]++;
+				}
+				for (int g = 0; g < nGroups; g++) {
+					groupStarts[g + 1] += groupStarts[g];
+				}
+				int[] groupMembers = new int[nActive];
+				int[] position = new int[nGroups];
+				for (int k = 0; k < nActive; k++) {
+					int g = pathGroup[k];
+					groupMembers[groupStarts[g] + position[g]++] = active[k];
+				}
+
+				workers.forEach(0, nGroups, g -> {
+					double[] center = (grid != null) ? paths[groupMembers[groupStarts[g]]].getCoordinates()
+							: getCenter(cells.get(g));
+					KernelBatch batch = collectors.get().collect(updater.getKernels(), center, blockRadius);
+					for (int m = groupStarts[g]; m < groupStarts[g + 1]; m++) {
+						int i = groupMembers[m];
+						updater.step(paths[i], batch);
+						iterations[i]++;
+					}
+				});
+				blocks.add(nGroups);
+				steps.add(nActive);
+
+				int remaining = 0;
+				for (int k = 0; k < nActive; k++) {
+					int i = active[k];
+					if (paths[i].isConverged()) {
+						updater.addIterationsToConverge(iterations[i]);
+					} else if (iterations[i] < maxIterations) {
+						active[remaining++] = i;
+					}
+				}
+				nActive = remaining;
+			}
+		}
+		return paths;
+	}
+
+	protected GridCell getCell(double[] coordinates) {
+		return (grid != null) ? grid.getCell(coordinates) : GridCell.of(coordinates, cellSizes);
+	}
+
+	protected double[] getCenter(GridCell cell) {
+		double[] center = new double[cellSizes.length];
+		for (int j = 0; j < center.length; j++) {
+			center[j] = (cell.getIndex(j) + 0.5) * cellSizes[j];
+		}
+		return center;
+	}
+
+	public long getBlocks() {
+		return blocks.sum();
+	}
+
+	public long getSteps() {
+		return steps.sum();
+	}
+
+	public String getStats() {
+		long blocks = getBlocks();
+		return "Batch engine: " + getSteps() + " path steps with " + blocks + " kernel blocks ("
+				+ ((blocks == 0) ? 0 : getSteps() / blocks) + " steps per block)";
+	}
+}
@@ -0,0 +1,121 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ClusterAssigner.java
+ * Labels new points against the PDF samples and local maxima of an
+ * initialized SgMac, without building clusters. The id of a point is the
+ * position (in the list of local maxima) of the local maximum closest to the
+ * mode of its path, or UNASSIGNED if the path does not converge or its mode
+ * is a new one, farther than the distance threshold from every local
+ * maximum (a path stopped by a negligible step, which clustering gives its
+ * own cluster). Ids are therefore the same for every call, whatever the
+ * other points labelled.
+ * The assigner only reads the model, and can be called concurrently as long
+ * as the updater is thread safe (SampledGradientUpdater and a built
+ * SampleGraphUpdater are).
+ * If a Whitening is set, the model is in the whitened space and the points
+ * are whitened before following their paths.
+ */
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import enriqueutrilla.sgmac.dm.PathPoint;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.dm.SampledPdfPoint;
+import enriqueutrilla.sgmac.util.Distances;
+import enriqueutrilla.sgmac.util.Parallel;
+import enriqueutrilla.sgmac.util.Whitening;
+
+public class ClusterAssigner {
+
+	public static final int UNASSIGNED = -1;
+
+	protected final ModeFinder updater;
+	protected final SpatialIndex<SampledPdfPoint> localMaximaIdx;
+	protected final double[] sigmas2;
+	protected final boolean unit;
+	protected final double distanceThreshold;
+	protected final Whitening whitening;
+	protected final Map<SampledPdfPoint, Integer> ids;
+
+	// The variances and the distance threshold (in sigmas) are the ones of
+	// the updater, in the whitened space if a Whitening is set
+	public ClusterAssigner(ModeFinder updater, SpatialIndex<SampledPdfPoint> localMaximaIdx, double[] sigmas2,
+			double distanceThreshold, Whitening whitening) {
+		this.updater = updater;
+		this.localMaximaIdx = localMaximaIdx;
+		this.sigmas2 = sigmas2;
+		this.unit = Distances.isUnit(sigmas2);
+		this.distanceThreshold = distanceThreshold;
+		this.whitening = whitening;
+		List<SampledPdfPoint> maxima = localMaximaIdx.getAll();
+		this.ids = new IdentityHashMap<>(maxima.size());
+		for (int i = 0; i < maxima.size(); i++) {
+			ids.put(maxima.get(i), i);
+		}
+	}
+
+	/**
+	 * Number of cluster ids (ids go from 0 to getNClusters() - 1).
+	 */
+	public int getNClusters() {
+		return ids.size();
+	}
+
+	public int assign(double[] coordinates) {
+		Point start = new Point((whitening != null) ? whitening.whiten(coordinates) : coordinates);
+		PathPoint mode = updater.findMode(start);
+		if (!mode.isConverged()) {
+			return UNASSIGNED;
+		}
+		double[] x = mode.getCoordinates();
+		SampledPdfPoint maximum = null;
+		double minDistance = distanceThreshold;
+		for (SampledPdfPoint candidate : localMaximaIdx.getNeighborhood(x, distanceThreshold)) {
+			double distance = distance(x, candidate.getCoordinates());
+			if (distance < minDistance) {
+				maximum = candidate;
+				minDistance = distance;
+			}
+		}
+		return (maximum != null) ? ids.get(maximum) : UNASSIGNED;
+	}
+
+	/**
+	 * Ids of all the rows of the store, searched with the given number of
+	 * threads (0 or less for all the processors).
+	 */
+	public int[] assignBatch(PointStore store, int parallelism) {
+		int[] result = new int[store.size()];
+		try (Parallel workers = new Parallel(parallelism)) {
+			workers.forEach(0, result.length,
+					row -> result[row] = assign(store.getCoordinates(row, new double[store.dim()])));
+		}
+		return result;
+	}
+
+	protected double distance(double[] x, double[] u) {
+		if (unit) {
+			return Math.sqrt(Distances.squaredEuclidean(x, u));
+		} else {
+			return Distances.mahalanobis(x, u, sigmas2);
+		}
+	}
+}
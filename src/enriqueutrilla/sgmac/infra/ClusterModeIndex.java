@@ -0,0 +1,178 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * ClusterModeIndex.java
+ * Clusters found by ModalClustering, with their modes indexed in a grid so
+ * that the cluster of a new mode is found without comparing it with every
+ * cluster. The cells are threshold sigmas wide along (at most) the first 3
+ * coordinates, so a mode within the threshold (in Mahalanobis distance) of
+ * another one is always in the same or an adjacent cell.
+ * A mode belongs to the last cluster (in order of creation) whose mode is
+ * within the threshold, as in the original linear search. Optionally, the
+ * clusters whose modes are chained by a new mode (all within its threshold)
+ * are merged into the first of them, with union-find.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import enriqueutrilla.sgmac.dm.Cluster;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.util.Distances;
+import enriqueutrilla.sgmac.util.GridCell;
+
+public class ClusterModeIndex {
+
+	protected static final int MAX_INDEXED_COORDS = 3;
+
+	protected final double[] sigma2;
+	protected final double threshold;
+	protected final boolean mergeChainedModes;
+	protected final double[] cellSizes;
+
+	protected final List<Cluster> clusters = new ArrayList<>();
+	protected final Map<GridCell, List<Integer>> cells = new HashMap<>();
+	// union-find forest of the clusters, only used when merging
+	protected int[] parents = new int[16];
+
+	public ClusterModeIndex(double[] sigma2, double threshold, boolean mergeChainedModes) {
+		this.sigma2 = sigma2;
+		this.threshold = threshold;
+		this.mergeChainedModes = mergeChainedModes;
+		this.cellSizes = new double[Math.min(MAX_INDEXED_COORDS, sigma2.length)];
+		for (int j = 0; j < cellSizes.length; j++) {
+			// slightly wider, so rounding never puts two close modes 2 cells apart
+			cellSizes[j] = threshold * Math.sqrt(sigma2[j]) * (1 + 1e-9);
+		}
+	}
+
+	/**
+	 * Cluster of the mode, or null if no mode is within the threshold.
+	 */
+	public Cluster find(Point mode) {
+		if (threshold <= 0 || clusters.isEmpty()) {
+			return null;
+		}
+		int[] center = getCellIndexes(mode);
+		int[] indexes = new int[center.length];
+		int last = -1;
+		int root = -1;
+		int nCells = 1;
+		for (int j = 0; j < center.length; j++) {
+			nCells *= 3;
+		}
+		for (int c = 0; c < nCells; c++) {
+			// c in base 3 gives the offset (-1, 0, 1) along each coordinate
+			int offsets = c;
+			for (int j = 0; j < center.length; j++) {
+				indexes[j] = center[j] + offsets % 3 - 1;
+				offsets /= 3;
+			}
+			List<Integer> candidates = cells.get(new GridCell(indexes.clone()));
+			if (candidates == null) {
+				continue;
+			}
+			for (int candidate : candidates) {
+				if (Distances.mahalanobis(mode, clusters.get(candidate).getMode(), sigma2) < threshold) {
+					last = Math.max(last, candidate);
+					if (mergeChainedModes) {
+						root = (root < 0) ? findRoot(candidate) : union(root, candidate);
+					}
+				}
+			}
+		}
+		if (last < 0) {
+			return null;
+		}
+		return clusters.get(mergeChainedModes ? root : last);
+	}
+
+	/**
+	 * New cluster for a mode without cluster.
+	 */
+	public Cluster add(Point mode) {
+		Cluster cluster = new Cluster(mode);
+		int index = clusters.size();
+		clusters.add(cluster);
+		if (threshold > 0) {
+			cells.computeIfAbsent(new GridCell(getCellIndexes(mode)), cell -> new ArrayList<>(1)).add(index);
+		}
+		if (index == parents.length) {
+			int[] newParents = new int[2 * parents.length];
+			System.arraycopy(parents, 0, newParents, 0, index);
+			parents = newParents;
+		}
+		parents[index] = index;
+		return cluster;
+	}
+
+	public int size() {
+		return clusters.size();
+	}
+
+	/**
+	 * The clusters in order of creation. When merging, the members of the
+	 * merged clusters are moved to the first cluster of their set.
+	 */
+	public List<Cluster> getClusters() {
+		if (!mergeChainedModes) {
+			return clusters;
+		}
+		List<Cluster> result = new ArrayList<>();
+		for (int i = 0; i < clusters.size(); i++) {
+			int root = findRoot(i);
+			if (root == i) {
+				result.add(clusters.get(i));
+			} else {
+				List<Point> members = clusters.get(i).getMembers();
+				for (Point member : members) {
+					clusters.get(root).add(member);
+				}
+				members.clear();
+			}
+		}
+		return result;
+	}
+
+	protected int[] getCellIndexes(Point mode) {
+		int[] indexes = new int[cellSizes.length];
+		for (int j = 0; j < cellSizes.length; j++) {
+			indexes[j] = (int) Math.floor(mode.get(j) / cellSizes[j]);
+		}
+		return indexes;
+	}
+
+	protected int findRoot(int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+	// the root of the union is the cluster created first
+	protected int union(int i, int j) {
+		int rootI = findRoot(i);
+		int rootJ = findRoot(j);
+		int root = Math.min(rootI, rootJ);
+		parents[rootI] = root;
+		parents[rootJ] = root;
+		return root;
+	}
+}
@@ -0,0 +1,65 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ConvergenceStats.java
+ * Counters of the paths followed by a ModeFinder and of the iterations they
+ * needed to converge. They are atomic, so paths can be counted from several
+ * threads.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConvergenceStats {
+
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger converged = new AtomicInteger();
+	private final AtomicLong accumIterations = new AtomicLong();
+	private final AtomicInteger minIteration = new AtomicInteger(Integer.MAX_VALUE);
+	private final AtomicInteger maxIteration = new AtomicInteger();
+
+	// Paths stopped at the maximum number of iterations count as not converged
+	public void add(int iterations, int maxIterations) {
+		total.incrementAndGet();
+		if (iterations < maxIterations) {
+			converged.incrementAndGet();
+			accumIterations.addAndGet(iterations);
+			if (iterations > 0) {
+				minIteration.accumulateAndGet(iterations, Math::min);
+			}
+			maxIteration.accumulateAndGet(iterations, Math::max);
+		}
+	}
+
+	public String getSummary() {
+
+		int total = this.total.get();
+		int converged = this.converged.get();
+
+		if (total > 0) {
+			return "Total points: " + total
+					+ ", converged " + converged
+					+ " (" + (int) (100 * converged / total) + "%)\n"
+					+ "Iterations to converge: "
+					+ minIteration.get() + " min, "
+					+ ((converged > 0) ? accumIterations.get() / converged : 0) + " average, "
+					+ maxIteration.get() + " max";
+		} else {
+			return null;
+		}
+	}
+}
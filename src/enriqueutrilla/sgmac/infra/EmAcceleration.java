@@ -0,0 +1,39 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * EmAcceleration.java
+ * Strategies of ModalEmUpdater to take longer steps than the plain EM (mean
+ * shift) update x' = m(x), which is slow near flat modes.
+ * The accelerated strategies move to x + factor * (m(x) - x). Each step is
+ * checked at the next iteration, when the kernels are evaluated at the new
+ * position anyway: if the PDF has decreased, the step is undone and the path
+ * continues from m(x) of the previous position, the plain step, with the
+ * factor back to 1. Convergence is still checked on the plain step.
+ */
+
+public enum EmAcceleration {
+
+	// Plain EM update, as in the original algorithm
+	NONE,
+
+	// Fixed over-relaxation factor (ModalEmUpdater.setRelaxationFactor)
+	OVER_RELAXATION,
+
+	// Factor doubled after every accepted step, up to a maximum
+	// (ModalEmUpdater.setMaxStepFactor), and reset to 1 when a step is undone
+	STEP_DOUBLING
+}
@@ -0,0 +1,539 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * FlatGridIndexedDataset.java
+ * Alternative backend of IndexedDataset using the same grid of cells, but
+ * stored in flat primitive arrays instead of a tree of HashMaps and lists.
+ * The indexes of each cell are packed into a single long key; cells are kept
+ * sorted by key, and the points of each cell are stored contiguously in an
+ * array of point ids (positions in the data list) with an offset table.
+ * Since the last indexed coordinate uses the lowest bits of the key, a row of
+ * consecutive cells is a contiguous range of points, so a neighborhood query
+ * costs a binary search per row instead of a map lookup per cell.
+ * Queries return the same points, in the same order, as the tree backend.
+ * Optionally, the bits of the cell indexes are interleaved in the key
+ * (Z-order, or Morton code), so that cells close in space are also close in
+ * the cell order, and the coordinates of the points are copied in cell order
+ * to a contiguous array. A neighborhood query is then a few sequential ranges
+ * of that array, found by skipping the keys outside the query box (BIGMIN),
+ * and the points are returned in Z-order. KernelCollector reads the kernels
+ * from the copy (visitNeighborhoodPositions), which holds the coordinates in
+ * double precision whatever the data.
+ * Every query first finds the ranges of positions in the cell order, in the
+ * QueryContext of the thread, so no query allocates once the data is indexed.
+ * If the point id table is null, the data list is already in cell order
+ * (e.g. an index reopened from a file by GridIndexFile).
+ */
+
+import java.util.Arrays;
+import java.util.IntSummaryStatistics;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.util.Console;
+
+public class FlatGridIndexedDataset<T extends DatasetPoint> extends IndexedDataset<T> {
+
+	protected int nIndexedCoords;
+	protected int[] minIndexes;
+	protected int[] maxIndexes;
+	protected int[] bitShifts;
+	protected boolean mortonOrder = false;
+	protected int mortonBits;
+	protected long[] mortonMasks;
+
+	protected long[] cellKeys;
+	protected int[] cellStarts;
+	protected int[] pointIds;
+	protected double[] cellCoordinates;
+
+	public FlatGridIndexedDataset(List<T> data, double[] sigmas, double cellSizeFactor) {
+		super(data, sigmas, cellSizeFactor);
+	}
+
+	public FlatGridIndexedDataset(List<T> data, double[] sigmas, double cellSizeFactor, int lastCoordToIndex) {
+		super(data, sigmas, cellSizeFactor, lastCoordToIndex);
+	}
+
+	public FlatGridIndexedDataset(List<T> data, double[] sigmas, double cellSizeFactor, int lastCoordToIndex,
+			double[] offsets) {
+		super(data, sigmas, cellSizeFactor, lastCoordToIndex, offsets);
+	}
+
+	/**
+	 * Sorts the cells in Z-order and keeps a copy of the coordinates in cell
+	 * order. Must be set before indexing.
+	 */
+	public FlatGridIndexedDataset<T> withMortonOrder(boolean mortonOrder) {
+		this.mortonOrder = mortonOrder;
+		return this;
+	}
+
+	public boolean isMortonOrder() {
+		return mortonOrder;
+	}
+
+	@Override
+	public synchronized void indexData(boolean parallel) {
+
+		int dim = conf.cellSizes.length;
+		nIndexedCoords = (conf.lastCoordToIndex >= 0) ? Math.min(conf.lastCoordToIndex + 1, dim) : dim;
+		int n = data.size();
+
+		// First pass: range of cell indexes in each indexed coordinate
+		minIndexes = new int[nIndexedCoords];
+		maxIndexes = new int[nIndexedCoords];
+		for (int j = 0; j < nIndexedCoords; j++) {
+			final int coordIndex = j;
+			IntSummaryStatistics stats = range(n, parallel)
+					.map(i -> getIndexFor(i, coordIndex)).summaryStatistics();
+			minIndexes[j] = (n > 0) ? stats.getMin() : 0;
+			maxIndexes[j] = (n > 0) ? stats.getMax() : 0;
+		}
+		computeKeyLayout();
+
+		// Second pass: packed key of each point, and sorted list of distinct keys
+		long[] keys = new long[n];
+		range(n, parallel).forEach(i -> keys[i] = getKeyFor(i));
+
+		long[] sortedKeys = Arrays.copyOf(keys, keys.length);
+		if (parallel) {
+			Arrays.parallelSort(sortedKeys);
+		} else {
+			Arrays.sort(sortedKeys);
+		}
+		int nCells = 0;
+		for (int i = 0; i < sortedKeys.length; i++) {
+			if (i == 0 || sortedKeys[i] != sortedKeys[i - 1]) {
+				sortedKeys[nCells++] = sortedKeys[i];
+			}
+		}
+		cellKeys = Arrays.copyOf(sortedKeys, nCells);
+
+		// Third pass: counting sort of the point ids by cell, keeping the data order inside each cell
+		int[] cellOfPoint = new int[keys.length];
+		range(n, parallel).forEach(i -> cellOfPoint[i] = Arrays.binarySearch(cellKeys, keys[i]));
+		cellStarts = new int[nCells + 1];
+		for (int i = 0; i < keys.length; i++) {
+			cellStarts[cellOfPoint[i] + 1]++;
+		}
+		for (int c = 0; c < nCells; c++) {
+			cellStarts[c + 1] += cellStarts[c];
+		}
+		int[] next = Arrays.copyOf(cellStarts, nCells);
+		pointIds = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			pointIds[next[cellOfPoint[i]]++] = i;
+		}
+
+		cellCoordinates = null;
+		if (mortonOrder) {
+			if ((long) n * dim > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Too many coordinates (" + n + " points of dimension " + dim
+						+ ") for a Z-order copy");
+			}
+			double[] copy = new double[n * dim];
+			range(n, parallel).forEach(
+					i -> System.arraycopy(getCoordinates(pointIds[i], new double[dim]), 0, copy, i * dim, dim));
+			cellCoordinates = copy;
+		}
+
+		indexed = true;
+
+		Console.log("Number of cells: " + nCells + " (" + nIndexedCoords + " indexed coordinates"
+				+ (mortonOrder ? ", Z-order)" : ")"));
+	}
+
+	@Override
+	protected void visitNeighborhood(double[] coordinates, int neighborhoodSize, QueryContext<T> context,
+			NeighborhoodVisitor<? super T> visitor) {
+
+		int nRanges = findRanges(coordinates, neighborhoodSize, context);
+		int[] ranges = context.ranges;
+		for (int r = 0; r < 2 * nRanges; r += 2) {
+			for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+				if (!visitor.visit(data.get(getRowInCellOrder(i)))) {
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void visitNeighborhoodRows(double[] coordinates, int neighborhoodSize, QueryContext<T> context,
+			RowVisitor visitor) {
+
+		int nRanges = findRanges(coordinates, neighborhoodSize, context);
+		int[] ranges = context.ranges;
+		for (int r = 0; r < 2 * nRanges; r += 2) {
+			for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+				if (!visitor.visit(getRowInCellOrder(i))) {
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void collectNeighborhood(double[] coordinates, int neighborhoodSize, QueryContext<T> context,
+			List<? super T> result) {
+
+		int nRanges = findRanges(coordinates, neighborhoodSize, context);
+		int[] ranges = context.ranges;
+		for (int r = 0; r < 2 * nRanges; r += 2) {
+			for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+				result.add(data.get(getRowInCellOrder(i)));
+			}
+		}
+	}
+
+	/**
+	 * Calls the visitor with the position in the cell order of each point of
+	 * the neighborhood, in the same order as visitNeighborhoodRows, until it
+	 * returns false. With Z-order, the position of a point is the offset of
+	 * its coordinates in getCellCoordinates() divided by the dimension.
+	 */
+	public void visitNeighborhoodPositions(double[] coordinates, double minRadiusInSigmas, RowVisitor visitor) {
+
+		if (minRadiusInSigmas < 0) {
+			for (int i = 0; i < data.size(); i++) {
+				if (!visitor.visit(i)) {
+					break;
+				}
+			}
+			return;
+		}
+		QueryContext<T> context = contexts.get();
+		int nRanges = findRanges(coordinates, getNeighborhoodSize(minRadiusInSigmas), context);
+		int[] ranges = context.ranges;
+		for (int r = 0; r < 2 * nRanges; r += 2) {
+			for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+				if (!visitor.visit(i)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Coordinates of the points in cell order (dim values per point), or null
+	 * unless the cells are in Z-order.
+	 */
+	public double[] getCellCoordinates() {
+		ensureIndexed();
+		return cellCoordinates;
+	}
+
+	/**
+	 * Writes in the ranges of the context the start and end positions (in the
+	 * cell order) of the points of the neighborhood, and returns the number
+	 * of ranges.
+	 */
+	protected int findRanges(double[] coordinates, int neighborhoodSize, QueryContext<T> context) {
+
+		ensureIndexed();
+		if (!setQueryRange(coordinates, neighborhoodSize, context)) {
+			return 0;
+		}
+		if (mortonOrder) {
+			return findMortonRanges(context);
+		}
+
+		// Iterate over all the rows of cells, in lexicographic order.
+		// Each row spans the whole range of the last indexed coordinate.
+		int last = nIndexedCoords - 1;
+		int[] low = context.low;
+		int[] high = context.high;
+		int[] current = context.current;
+		System.arraycopy(low, 0, current, 0, nIndexedCoords);
+		int nRanges = 0;
+		do {
+			current[last] = low[last];
+			int cell = getFirstCell(getKey(current), 0);
+			current[last] = high[last];
+			int lastCell = getEndCell(cell, getKey(current));
+			nRanges = addRange(context, nRanges, cellStarts[cell], cellStarts[lastCell]);
+		} while (nextCellRow(low, high, current));
+		return nRanges;
+	}
+
+	/**
+	 * Ranges of the cells inside the query box, in Z-order: the cells between
+	 * the keys of the low and high corners are scanned, jumping over the runs
+	 * of cells outside the box.
+	 */
+	protected int findMortonRanges(QueryContext<T> context) {
+
+		long minKey = getKey(context.low);
+		long maxKey = getKey(context.high);
+		int nRanges = 0;
+		int cell = getFirstCell(minKey, 0);
+		while (cell < cellKeys.length && cellKeys[cell] <= maxKey) {
+			if (isInBox(cellKeys[cell], minKey, maxKey)) {
+				nRanges = addRange(context, nRanges, cellStarts[cell], cellStarts[cell + 1]);
+				cell++;
+			} else {
+				cell = getFirstCell(getNextInBox(cellKeys[cell], minKey, maxKey), cell + 1);
+			}
+		}
+		return nRanges;
+	}
+
+	// Appends a range to the context, merging it with the previous one if
+	// they are contiguous
+	protected int addRange(QueryContext<T> context, int nRanges, int start, int end) {
+		if (start == end) {
+			return nRanges;
+		}
+		int[] ranges = context.ranges;
+		if (nRanges > 0 && ranges[2 * nRanges - 1] == start) {
+			ranges[2 * nRanges - 1] = end;
+			return nRanges;
+		}
+		if (ranges.length < 2 * nRanges + 2) {
+			ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+			context.ranges = ranges;
+		}
+		ranges[2 * nRanges] = start;
+		ranges[2 * nRanges + 1] = end;
+		return nRanges + 1;
+	}
+
+	// Whether every cell index of the Z-order key is between the ones of the
+	// keys of the corners of the box. The bits of a single coordinate keep
+	// their order in the key, so the masked keys can be compared directly.
+	protected boolean isInBox(long key, long minKey, long maxKey) {
+		for (long mask : mortonMasks) {
+			long masked = key & mask;
+			if (masked < (minKey & mask) || masked > (maxKey & mask)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Smallest Z-order key greater than the given one (which is outside the
+	 * box) and inside the box, or Long.MAX_VALUE if there is none. This is the
+	 * BIGMIN search of Tropf and Herzog, from the highest bit of the keys.
+	 */
+	protected long getNextInBox(long key, long minKey, long maxKey) {
+		long next = Long.MAX_VALUE;
+		for (int p = nIndexedCoords * mortonBits - 1; p >= 0; p--) {
+			long bit = 1L << p;
+			// lower bits of the same coordinate
+			long lower = mortonMasks[nIndexedCoords - 1 - p % nIndexedCoords] & (bit - 1);
+			boolean keyBit = (key & bit) != 0;
+			boolean minBit = (minKey & bit) != 0;
+			boolean maxBit = (maxKey & bit) != 0;
+			if (!keyBit && minBit) {
+				return minKey;
+			} else if (keyBit && !maxBit) {
+				return next;
+			} else if (!keyBit && maxBit) {
+				next = (minKey | bit) & ~lower;
+				maxKey = (maxKey & ~bit) | lower;
+			} else if (keyBit && !minBit) {
+				minKey = (minKey | bit) & ~lower;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Sets the low and high cell indexes of the query in the context, clipped
+	 * to the indexed range. Returns false if the query is outside of it.
+	 */
+	protected boolean setQueryRange(double[] coordinates, int neighborhoodSize, QueryContext<T> context) {
+		int[] low = context.low;
+		int[] high = context.high;
+		for (int j = 0; j < nIndexedCoords; j++) {
+			int index = conf.getIndexFor(coordinates, j);
+			low[j] = Math.max(index - neighborhoodSize, minIndexes[j]);
+			high[j] = Math.min(index + neighborhoodSize, maxIndexes[j]);
+			if (low[j] > high[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the current indexes to the next row of cells, in lexicographic
+	 * order. Returns false after the last row.
+	 */
+	protected boolean nextCellRow(int[] low, int[] high, int[] current) {
+		int j = nIndexedCoords - 2;
+		while (j >= 0 && current[j] == high[j]) {
+			current[j] = low[j];
+			j--;
+		}
+		if (j < 0) {
+			return false;
+		}
+		current[j]++;
+		return true;
+	}
+
+	@Override
+	protected void visitCellRow(int[] indexes, int last, int low, int high, RowVisitor visitor) {
+		for (int j = 0; j < last; j++) {
+			if (indexes[j] < minIndexes[j] || indexes[j] > maxIndexes[j]) {
+				return;
+			}
+		}
+		low = Math.max(low, minIndexes[last]);
+		high = Math.min(high, maxIndexes[last]);
+		if (mortonOrder) {
+			for (int index = low; index <= high; index++) {
+				indexes[last] = index;
+				int cell = Arrays.binarySearch(cellKeys, getKey(indexes));
+				if (cell >= 0) {
+					for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+						visitor.visit(getRowInCellOrder(i));
+					}
+				}
+			}
+		} else if (low <= high) {
+			indexes[last] = low;
+			int cell = getFirstCell(getKey(indexes), 0);
+			indexes[last] = high;
+			int lastCell = getEndCell(cell, getKey(indexes));
+			for (int i = cellStarts[cell]; i < cellStarts[lastCell]; i++) {
+				visitor.visit(getRowInCellOrder(i));
+			}
+		}
+	}
+
+	/**
+	 * Restores the cell table of an index whose data is already stored in cell
+	 * order, so no point id table (nor copy of the coordinates) is needed.
+	 */
+	protected void restore(boolean mortonOrder, int[] minIndexes, int[] maxIndexes, long[] cellKeys,
+			int[] cellStarts) {
+		this.mortonOrder = mortonOrder;
+		this.nIndexedCoords = minIndexes.length;
+		this.minIndexes = minIndexes;
+		this.maxIndexes = maxIndexes;
+		computeKeyLayout();
+		this.cellKeys = cellKeys;
+		this.cellStarts = cellStarts;
+		this.pointIds = null;
+		this.cellCoordinates = null;
+		this.indexed = true;
+	}
+
+	/**
+	 * Row in the data list of the point at the given position of the cell order.
+	 */
+	protected int getRowInCellOrder(int i) {
+		return (pointIds != null) ? pointIds[i] : i;
+	}
+
+	// First cell, from the given one, with a key not lower than the given key
+	protected int getFirstCell(long firstKey, int fromCell) {
+		int cell = Arrays.binarySearch(cellKeys, fromCell, cellKeys.length, firstKey);
+		return (cell < 0) ? -cell - 1 : cell;
+	}
+
+	// Cell after the last one, from the given cell, with a key not greater than the given one
+	protected int getEndCell(int cell, long lastKey) {
+		int lastCell = cell;
+		while (lastCell < cellKeys.length && cellKeys[lastCell] <= lastKey) {
+			lastCell++;
+		}
+		return lastCell;
+	}
+
+	// Bit shifts of the lexicographic keys, or bit masks of the Z-order keys
+	protected void computeKeyLayout() {
+		bitShifts = new int[nIndexedCoords];
+		int totalBits = 0;
+		mortonBits = 0;
+		for (int j = nIndexedCoords - 1; j >= 0; j--) {
+			long range = (long) maxIndexes[j] - minIndexes[j] + 1;
+			int bits = Math.max(1, 64 - Long.numberOfLeadingZeros(range - 1));
+			bitShifts[j] = totalBits;
+			totalBits += bits;
+			mortonBits = Math.max(mortonBits, bits);
+		}
+		mortonMasks = null;
+		if (mortonOrder) {
+			// bit b of coordinate j goes to bit b * nIndexedCoords + (nIndexedCoords - 1 - j)
+			totalBits = mortonBits * nIndexedCoords;
+			mortonMasks = new long[nIndexedCoords];
+			for (int b = 0; b < mortonBits && totalBits <= 63; b++) {
+				for (int j = 0; j < nIndexedCoords; j++) {
+					mortonMasks[j] |= 1L << (b * nIndexedCoords + nIndexedCoords - 1 - j);
+				}
+			}
+		}
+		if (totalBits > 63) {
+			throw new IllegalStateException("Cell indexes need " + totalBits
+					+ " bits and cannot be packed into a long key; reduce lastCoordToIndex or increase cellSizeFactor");
+		}
+	}
+
+	protected static IntStream range(int n, boolean parallel) {
+		IntStream range = IntStream.range(0, n);
+		return parallel ? range.parallel() : range;
+	}
+
+	protected int getIndexFor(int row, int coordIndex) {
+		if (store != null) {
+			return conf.getIndexFor(store.get(row, coordIndex), coordIndex);
+		} else {
+			return conf.getIndexFor(data.get(row).getCoordinates(), coordIndex);
+		}
+	}
+
+	protected long getKeyFor(int row) {
+		long key = 0;
+		for (int j = 0; j < nIndexedCoords; j++) {
+			key |= getKeyBits(getIndexFor(row, j) - minIndexes[j], j);
+		}
+		return key;
+	}
+
+	protected long getKey(int[] indexes) {
+		long key = 0;
+		for (int j = 0; j < nIndexedCoords; j++) {
+			key |= getKeyBits(indexes[j] - minIndexes[j], j);
+		}
+		return key;
+	}
+
+	// Bits of the key for the given (relative) cell index of coordinate j
+	protected long getKeyBits(int index, int j) {
+		if (!mortonOrder) {
+			return ((long) index) << bitShifts[j];
+		}
+		// deposit the bits of the index, from the lowest one, in the bits of the mask
+		long bits = 0;
+		long mask = mortonMasks[j];
+		for (long bit = 1; mask != 0 && bit <= index; bit <<= 1) {
+			long lowest = mask & -mask;
+			if ((index & bit) != 0) {
+				bits |= lowest;
+			}
+			mask &= mask - 1;
+		}
+		return bits;
+	}
+
+}
@@ -0,0 +1,33 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * GridIndex.java
+ * Index whose neighborhood queries only depend on the cell of the grid that
+ * contains the query point (and on the radius), not on its position in the
+ * cell. The neighborhood of a point can then be reused while the point
+ * stays in the same cell.
+ */
+
+import enriqueutrilla.sgmac.util.GridCell;
+
+public interface GridIndex {
+
+	/**
+	 * Cell containing the coordinates, on the indexed coordinates.
+	 */
+	public GridCell getCell(double[] coordinates);
+}
@@ -0,0 +1,204 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * GridIndexFile.java
+ * Binary file format for a built FlatGridIndexedDataset, so it can be reused
+ * between runs without indexing the data again.
+ * The file contains the grid configuration, the cell table (keys and offsets)
+ * and then the ids and coordinates of the points as contiguous blocks, in cell
+ * order. Reopening the file only reads the cell table: ids and coordinates are
+ * memory mapped as a DoublePointStore, and a DatasetPoint is only created when
+ * a query returns it (row queries read the mapped coordinates directly).
+ * Only ids and coordinates are stored, so the reopened index always contains
+ * plain DatasetPoints.
+ * Version 2 adds the order of the cells (lexicographic or Z-order); files of
+ * version 1 are always in lexicographic order. The mapped coordinates are
+ * already in cell order, so a reopened Z-order index keeps no copy of them.
+ *
+ * Layout (big endian):
+ *   int magic, int version
+ *   int dim, int lastCoordToIndex, int mortonOrder (0 or 1), double cellSizeFactor
+ *   double[dim] sigmas, double[dim] offsets
+ *   int nIndexedCoords, int[nIndexedCoords] minIndexes, int[nIndexedCoords] maxIndexes
+ *   int nCells, int nPoints
+ *   long[nCells] cellKeys, int[nCells + 1] cellStarts
+ *   padding up to a multiple of 8 bytes
+ *   long[nPoints] ids
+ *   double[nPoints * dim] coordinates
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.DoublePointStore;
+
+public class GridIndexFile {
+
+	public static final int MAGIC = 0x53474958; // "SGIX"
+	public static final int VERSION = 2;
+
+	public static void write(FlatGridIndexedDataset<? extends DatasetPoint> index, File file) throws IOException {
+
+		index.ensureIndexed();
+		int dim = index.conf.cellSizes.length;
+		int nCells = index.cellKeys.length;
+		int nPoints = index.data.size();
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(dim);
+			out.writeInt(index.conf.lastCoordToIndex);
+			out.writeInt(index.mortonOrder ? 1 : 0);
+			out.writeDouble(index.conf.cellSizeFactor);
+			for (int j = 0; j < dim; j++) {
+				out.writeDouble(index.sigmas[j]);
+			}
+			for (int j = 0; j < dim; j++) {
+				out.writeDouble(index.conf.offsets[j]);
+			}
+			out.writeInt(index.nIndexedCoords);
+			for (int j = 0; j < index.nIndexedCoords; j++) {
+				out.writeInt(index.minIndexes[j]);
+			}
+			for (int j = 0; j < index.nIndexedCoords; j++) {
+				out.writeInt(index.maxIndexes[j]);
+			}
+			out.writeInt(nCells);
+			out.writeInt(nPoints);
+			for (int c = 0; c < nCells; c++) {
+				out.writeLong(index.cellKeys[c]);
+			}
+			for (int c = 0; c <= nCells; c++) {
+				out.writeInt(index.cellStarts[c]);
+			}
+			while (out.size() % 8 != 0) {
+				out.writeByte(0);
+			}
+
+			for (int i = 0; i < nPoints; i++) {
+				out.writeLong(index.data.get(index.getRowInCellOrder(i)).getId());
+			}
+			for (int i = 0; i < nPoints; i++) {
+				double[] coordinates = index.data.get(index.getRowInCellOrder(i)).getCoordinates();
+				for (int j = 0; j < dim; j++) {
+					out.writeDouble(coordinates[j]);
+				}
+			}
+		}
+	}
+
+	public static FlatGridIndexedDataset<DatasetPoint> open(File file) throws IOException {
+
+		int dim, lastCoordToIndex, nCells, nPoints;
+		boolean mortonOrder;
+		double cellSizeFactor;
+		double[] sigmas, offsets;
+		int[] minIndexes, maxIndexes;
+		long headerSize;
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a grid index file: " + file);
+			}
+			int version = in.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported grid index file version " + version + ": " + file);
+			}
+			dim = in.readInt();
+			lastCoordToIndex = in.readInt();
+			mortonOrder = (version >= 2) && in.readInt() != 0;
+			cellSizeFactor = in.readDouble();
+			sigmas = new double[dim];
+			for (int j = 0; j < dim; j++) {
+				sigmas[j] = in.readDouble();
+			}
+			offsets = new double[dim];
+			for (int j = 0; j < dim; j++) {
+				offsets[j] = in.readDouble();
+			}
+			int nIndexedCoords = in.readInt();
+			minIndexes = new int[nIndexedCoords];
+			for (int j = 0; j < nIndexedCoords; j++) {
+				minIndexes[j] = in.readInt();
+			}
+			maxIndexes = new int[nIndexedCoords];
+			for (int j = 0; j < nIndexedCoords; j++) {
+				maxIndexes[j] = in.readInt();
+			}
+			nCells = in.readInt();
+			nPoints = in.readInt();
+			headerSize = 4 * 4 + 8 + 16L * dim + 4 + 8L * nIndexedCoords + 8 + ((version >= 2) ? 4 : 0);
+		}
+
+		long[] cellKeys = new long[nCells];
+		int[] cellStarts = new int[nCells + 1];
+		DoublePointStore points;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			channel.map(MapMode.READ_ONLY, headerSize, 8L * nCells).asLongBuffer().get(cellKeys);
+			channel.map(MapMode.READ_ONLY, headerSize + 8L * nCells, 4L * (nCells + 1)).asIntBuffer().get(cellStarts);
+
+			long idsStart = headerSize + 8L * nCells + 4L * (nCells + 1);
+			idsStart = (idsStart + 7) / 8 * 8;
+			long coordinatesStart = idsStart + 8L * nPoints;
+			points = mapPoints(channel, idsStart, coordinatesStart, nPoints, dim);
+		}
+
+		FlatGridIndexedDataset<DatasetPoint> index = new FlatGridIndexedDataset<>(points.asList(), sigmas,
+				cellSizeFactor, lastCoordToIndex, offsets);
+		index.restore(mortonOrder, minIndexes, maxIndexes, cellKeys, cellStarts);
+		return index;
+	}
+
+	/**
+	 * Store of ids and coordinates backed by the memory mapped blocks of the
+	 * file. Each block is split in chunks, since a single mapping cannot be
+	 * larger than 2 GB.
+	 */
+	protected static DoublePointStore mapPoints(FileChannel channel, long idsStart, long coordinatesStart, int size,
+			int dim) throws IOException {
+
+		int chunkShift = DoublePointStore.getChunkShift(8 * Math.max(1, dim));
+		int nChunks = DoublePointStore.getNChunks(size, chunkShift);
+		LongBuffer[] idChunks = new LongBuffer[nChunks];
+		DoubleBuffer[] coordinateChunks = new DoubleBuffer[nChunks];
+		for (int c = 0; c < nChunks; c++) {
+			long first = (long) c << chunkShift;
+			long count = Math.min(1L << chunkShift, size - first);
+			MappedByteBuffer ids = channel.map(MapMode.READ_ONLY, idsStart + 8 * first, 8 * count);
+			MappedByteBuffer coordinates = channel.map(MapMode.READ_ONLY, coordinatesStart + 8 * dim * first,
+					8 * dim * count);
+			idChunks[c] = ids.asLongBuffer();
+			coordinateChunks[c] = coordinates.asDoubleBuffer();
+		}
+		return new DoublePointStore(size, dim, idChunks, coordinateChunks);
+	}
+}
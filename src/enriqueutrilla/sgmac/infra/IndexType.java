@@ -0,0 +1,95 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IndexType.java
+ * Available backends for the neighborhood index, used by BasicMac and SgMac
+ * to select which implementation to build. The grid parameters (cell size
+ * factor and last coordinate to index) are ignored by backends without a grid.
+ */
+
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+
+public enum IndexType {
+
+	// Original tree of HashMaps, one level per indexed coordinate
+	TREE {
+		@Override
+		public <T extends DatasetPoint> SpatialIndex<T> create(List<T> data, double[] sigmas,
+				double cellSizeFactor, int lastCoordToIndex) {
+			return new IndexedDataset<>(data, sigmas, cellSizeFactor, lastCoordToIndex);
+		}
+	},
+
+	// Same grid, stored as sorted primitive arrays
+	FLAT_GRID {
+		@Override
+		public <T extends DatasetPoint> SpatialIndex<T> create(List<T> data, double[] sigmas,
+				double cellSizeFactor, int lastCoordToIndex) {
+			return new FlatGridIndexedDataset<>(data, sigmas, cellSizeFactor, lastCoordToIndex);
+		}
+	},
+
+	// Same grid with the cells in Z-order and a cell-ordered copy of the coordinates
+	MORTON_GRID {
+		@Override
+		public <T extends DatasetPoint> SpatialIndex<T> create(List<T> data, double[] sigmas,
+				double cellSizeFactor, int lastCoordToIndex) {
+			return new FlatGridIndexedDataset<>(data, sigmas, cellSizeFactor, lastCoordToIndex).withMortonOrder(true);
+		}
+	},
+
+	// KD-tree returning only the points inside the radius
+	KD_TREE {
+		@Override
+		public <T extends DatasetPoint> SpatialIndex<T> create(List<T> data, double[] sigmas,
+				double cellSizeFactor, int lastCoordToIndex) {
+			return new KdTreeIndex<>(data, sigmas);
+		}
+	},
+
+	// Approximate index based on random projections, for high dimensional data,
+	// with the default design radius and recall target
+	RANDOM_PROJECTION {
+		@Override
+		public <T extends DatasetPoint> SpatialIndex<T> create(List<T> data, double[] sigmas,
+				double cellSizeFactor, int lastCoordToIndex) {
+			return new RandomProjectionIndex<>(data, sigmas);
+		}
+	};
+
+	public abstract <T extends DatasetPoint> SpatialIndex<T> create(List<T> data, double[] sigmas,
+			double cellSizeFactor, int lastCoordToIndex);
+
+	/**
+	 * Creates the index, optionally storing the coordinates it keeps in single
+	 * precision. Grid backends only keep the rows of the points (the Z-order
+	 * grid keeps its copy in double precision), so the option only affects
+	 * the KD-tree and the random projection index.
+	 */
+	public <T extends DatasetPoint> SpatialIndex<T> create(List<T> data, double[] sigmas, double cellSizeFactor,
+			int lastCoordToIndex, boolean singlePrecision) {
+		SpatialIndex<T> index = create(data, sigmas, cellSizeFactor, lastCoordToIndex);
+		if (singlePrecision && index instanceof KdTreeIndex) {
+			((KdTreeIndex<T>) index).withSinglePrecision(true);
+		} else if (singlePrecision && index instanceof RandomProjectionIndex) {
+			((RandomProjectionIndex<T>) index).withSinglePrecision(true);
+		}
+		return index;
+	}
+}
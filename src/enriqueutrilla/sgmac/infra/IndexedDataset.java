@@ -21,30 +21,45 @@ package enriqueutrilla.sgmac.infra;
  * The filtering is an upper limit (all points inside the n-sphere of given
  * radius are returned, but some extra points further awaymay be returned too).
  * This implementation might also be replaced by an R-Tree or similar.
+ * Once indexData() has finished the index is read-only, and it can be queried
+ * concurrently: every thread gets its own QueryContext with the scratch
+ * buffers, and callers can provide their own result list or a visitor.
+ * The leaves of the tree keep the rows (positions in the data list) of their
+ * points. If the data list is a view of a PointStore, coordinates are read
+ * from the store while indexing, without creating point objects.
+ * The nearest neighbor of a point is searched ring by ring of cells around
+ * its own cell, stopping as soon as the nearest point found is closer than
+ * any cell outside the rings scanned so far (or scanning the whole dataset
+ * when the next ring has more cells than the points not visited yet).
  */
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PointStore;
 import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.GridCell;
 
-public class IndexedDataset<T extends DatasetPoint> {
+public class IndexedDataset<T extends DatasetPoint> implements SpatialIndex<T>, GridIndex {
 
-	protected boolean indexed = false;
+	protected volatile boolean indexed = false;
 	protected Node<T> root = null;
 	protected Configuration conf;
 	protected List<T> data;
-	protected List<T> lastQuery;
+	protected PointStore store;
+	protected double[] sigmas;
+	protected final ThreadLocal<QueryContext<T>> contexts = ThreadLocal.withInitial(this::newQueryContext);
 
 	public IndexedDataset(List<T> data, double[] sigmas, double cellSizeFactor) {
 
 		this.data = data;
-		this.lastQuery = new ArrayList<>(data.size());
+		this.store = PointStore.of(data);
+		this.sigmas = sigmas;
 
 		conf = new Configuration();
 		conf.cellSizes = new double[sigmas.length];
@@ -61,7 +76,8 @@ public class IndexedDataset<T extends DatasetPoint> {
 	public IndexedDataset(List<T> data, double[] sigmas, double cellSizeFactor, int lastCoordToIndex) {
 
 		this.data = data;
-		this.lastQuery = new ArrayList<>(data.size() / 4);
+		this.store = PointStore.of(data);
+		this.sigmas = sigmas;
 
 		conf = new Configuration();
 		conf.cellSizes = new double[sigmas.length];
@@ -79,7 +95,8 @@ public class IndexedDataset<T extends DatasetPoint> {
 			double[] offsets) {
 
 		this.data = data;
-		this.lastQuery = new ArrayList<>(data.size() / 4);
+		this.store = PointStore.of(data);
+		this.sigmas = sigmas;
 
 		conf = new Configuration();
 		conf.cellSizes = new double[sigmas.length];
@@ -92,41 +109,312 @@ public class IndexedDataset<T extends DatasetPoint> {
 		conf.cellSizeFactor = cellSizeFactor;
 	}
 
+	@Override
 	public List<T> getAll() {
 		return data;
 	}
 
+	@Override
+	public double[] getSigmas() {
+		return sigmas;
+	}
+
+	@Override
 	public void indexData() {
+		indexData(false);
+	}
+
+	@Override
+	public synchronized void indexData(boolean parallel) {
 
 		root = new Node<T>(-1, conf);
-		for (T point : data) {
-			root.indexPoint(point);
+		int n = data.size();
+		double[] buffer = new double[conf.cellSizes.length];
+		if (parallel) {
+			// Partition the points by first level cell (keeping the data order inside
+			// each cell), and build the subtree of each cell concurrently
+			int[] firstIndexes = new int[n];
+			Map<Integer, int[]> partitionSizes = new HashMap<>();
+			for (int row = 0; row < n; row++) {
+				firstIndexes[row] = conf.getIndexFor(getCoordinates(row, buffer), 0);
+				int[] size = partitionSizes.get(firstIndexes[row]);
+				if (size == null) {
+					size = new int[1];
+					partitionSizes.put(firstIndexes[row], size);
+				}
+				size[0]++;
+			}
+			Map<Integer, int[]> partitions = new HashMap<>();
+			for (Map.Entry<Integer, int[]> entry : partitionSizes.entrySet()) {
+				partitions.put(entry.getKey(), new int[entry.getValue()[0]]);
+				entry.getValue()[0] = 0;
+			}
+			for (int row = 0; row < n; row++) {
+				partitions.get(firstIndexes[row])[partitionSizes.get(firstIndexes[row])[0]++] = row;
+			}
+			Map<Integer, Node<T>> children = new ConcurrentHashMap<>();
+			partitions.entrySet().parallelStream().forEach(partition -> {
+				Node<T> child = new Node<T>(0, conf);
+				double[] coordinates = new double[conf.cellSizes.length];
+				for (int row : partition.getValue()) {
+					child.indexPoint(getCoordinates(row, coordinates), row);
+				}
+				children.put(partition.getKey(), child);
+			});
+			root.children = new HashMap<>(children);
+		} else {
+			for (int row = 0; row < n; row++) {
+				root.indexPoint(getCoordinates(row, buffer), row);
+			}
 		}
+
+		Arrays.fill(conf.nNodes, 0);
+		root.countNodes(conf.nNodes);
 		indexed = true;
 
 		Console.log("Number of nodes at each level: " + Arrays.toString(conf.nNodes));
 	}
 
+	/**
+	 * Coordinates of the point at the given row. Points of a PointStore are
+	 * copied to the buffer; otherwise the array of the point is returned.
+	 */
+	protected double[] getCoordinates(int row, double[] buffer) {
+		return (store != null) ? store.getCoordinates(row, buffer) : data.get(row).getCoordinates();
+	}
+
+	protected void ensureIndexed() {
+		if (!indexed) {
+			synchronized (this) {
+				if (!indexed) {
+					indexData();
+				}
+			}
+		}
+	}
+
+	public QueryContext<T> newQueryContext() {
+		return new QueryContext<>(conf.cellSizes.length);
+	}
+
+	@Override
 	public List<T> getNeighborhood(double[] coordinates, double minRadiusInSigmas) {
+		return getNeighborhood(coordinates, minRadiusInSigmas, contexts.get());
+	}
+
+	/**
+	 * Returns the neighborhood in the result list of the given context, that is
+	 * overwritten by the next query using the same context.
+	 */
+	public List<T> getNeighborhood(double[] coordinates, double minRadiusInSigmas, QueryContext<T> context) {
 
 		if (minRadiusInSigmas < 0) {
 			return getAll();
 		} else {
-			int[] indexes = conf.getIndexFor(coordinates);
+			context.result.clear();
+			collectNeighborhood(coordinates, getNeighborhoodSize(minRadiusInSigmas), context, context.result);
+			return context.result;
+		}
+	}
+
+	@Override
+	public void getNeighborhood(double[] coordinates, double minRadiusInSigmas, List<T> result) {
+
+		result.clear();
+		if (minRadiusInSigmas < 0) {
+			result.addAll(getAll());
+		} else {
+			collectNeighborhood(coordinates, getNeighborhoodSize(minRadiusInSigmas), contexts.get(), result);
+		}
+	}
+
+	@Override
+	public void visitNeighborhood(double[] coordinates, double minRadiusInSigmas,
+			NeighborhoodVisitor<? super T> visitor) {
 
-			if (!indexed) {
-				indexData();
+		if (minRadiusInSigmas < 0) {
+			for (T point : getAll()) {
+				if (!visitor.visit(point)) {
+					break;
+				}
 			}
+		} else {
+			visitNeighborhood(coordinates, getNeighborhoodSize(minRadiusInSigmas), contexts.get(), visitor);
+		}
+	}
 
-			int neighborhoodSize = 0;
-			if (minRadiusInSigmas > 0) {
-				neighborhoodSize = (int) Math.ceil(minRadiusInSigmas / conf.cellSizeFactor);
+	@Override
+	public void visitNeighborhoodRows(double[] coordinates, double minRadiusInSigmas, RowVisitor visitor) {
+
+		if (minRadiusInSigmas < 0) {
+			for (int row = 0; row < data.size(); row++) {
+				if (!visitor.visit(row)) {
+					break;
+				}
 			}
+		} else {
+			visitNeighborhoodRows(coordinates, getNeighborhoodSize(minRadiusInSigmas), contexts.get(), visitor);
+		}
+	}
 
-			this.lastQuery.clear();
+	@Override
+	public T getNearest(double[] coordinates, boolean skipCoincident) {
+
+		ensureIndexed();
+		NearestSearch<T> search = new NearestSearch<>(data, coordinates, sigmas, skipCoincident);
+		QueryContext<T> context = contexts.get();
+		int[] center = conf.getIndexFor(coordinates, context.indexes);
+		int nIndexed = getNIndexedCoords();
+		for (int ring = 0; search.getVisited() < data.size(); ring++) {
+			double cells = Math.pow(2 * ring + 1, nIndexed) - ((ring > 0) ? Math.pow(2 * ring - 1, nIndexed) : 0);
+			if (cells > data.size() - search.getVisited()) {
+				visitNeighborhoodRows(coordinates, -1, search);
+				break;
+			}
+			visitRing(center, ring, nIndexed, context.current, search);
+			if (search.getDistance() <= getDistanceOutside(coordinates, center, ring, nIndexed)) {
+				break;
+			}
+		}
+		return search.getNearest();
+	}
 
-			root.getNeighborhood(indexes, neighborhoodSize, lastQuery);
-			return lastQuery;
+	/**
+	 * Lower bound of the distance (in sigmas) from the coordinates to any point
+	 * outside the cells up to the given ring around the center cell.
+	 */
+	protected double getDistanceOutside(double[] coordinates, int[] center, int ring, int nIndexed) {
+		double distance = Double.POSITIVE_INFINITY;
+		for (int j = 0; j < nIndexed; j++) {
+			double low = conf.offsets[j] + (center[j] - ring) * conf.cellSizes[j];
+			double high = conf.offsets[j] + (center[j] + ring + 1) * conf.cellSizes[j];
+			distance = Math.min(distance, Math.min(coordinates[j] - low, high - coordinates[j]) / sigmas[j]);
+		}
+		return distance;
+	}
+
+	/**
+	 * Visits the rows of the points of the cells whose largest index
+	 * difference with the center cell is exactly ring.
+	 */
+	protected void visitRing(int[] center, int ring, int nIndexed, int[] current, RowVisitor visitor) {
+
+		int last = nIndexed - 1;
+		for (int j = 0; j < last; j++) {
+			current[j] = center[j] - ring;
+		}
+		while (true) {
+			boolean border = (ring == 0);
+			for (int j = 0; j < last && !border; j++) {
+				border = Math.abs(current[j] - center[j]) == ring;
+			}
+			if (border) {
+				visitCellRow(current, last, center[last] - ring, center[last] + ring, visitor);
+			} else {
+				visitCellRow(current, last, center[last] - ring, center[last] - ring, visitor);
+				visitCellRow(current, last, center[last] + ring, center[last] + ring, visitor);
+			}
+
+			int j = last - 1;
+			while (j >= 0 && current[j] == center[j] + ring) {
+				current[j] = center[j] - ring;
+				j--;
+			}
+			if (j < 0) {
+				break;
+			}
+			current[j]++;
+		}
+	}
+
+	/**
+	 * Visits the rows of the points of the cells with the given indexes, and
+	 * any index from low to high in the last indexed coordinate.
+	 */
+	protected void visitCellRow(int[] indexes, int last, int low, int high, RowVisitor visitor) {
+		for (int i = low; i <= high; i++) {
+			indexes[last] = i;
+			Node<T> leaf = root.getLeaf(indexes);
+			if (leaf != null) {
+				for (int k = 0; k < leaf.nRows; k++) {
+					visitor.visit(leaf.rows[k]);
+				}
+			}
+		}
+	}
+
+	protected int getNIndexedCoords() {
+		int dim = conf.cellSizes.length;
+		return (conf.lastCoordToIndex >= 0) ? Math.min(conf.lastCoordToIndex + 1, dim) : dim;
+	}
+
+	@Override
+	public GridCell getCell(double[] coordinates) {
+		int[] indexes = new int[getNIndexedCoords()];
+		for (int j = 0; j < indexes.length; j++) {
+			indexes[j] = conf.getIndexFor(coordinates, j);
+		}
+		return new GridCell(indexes);
+	}
+
+	protected int getNeighborhoodSize(double minRadiusInSigmas) {
+		int neighborhoodSize = 0;
+		if (minRadiusInSigmas > 0) {
+			neighborhoodSize = (int) Math.ceil(minRadiusInSigmas / conf.cellSizeFactor);
+		}
+		return neighborhoodSize;
+	}
+
+	/**
+	 * Appends the points of the neighborhood to the result list.
+	 */
+	protected void collectNeighborhood(double[] coordinates, int neighborhoodSize, QueryContext<T> context,
+			List<? super T> result) {
+
+		ensureIndexed();
+
+		int[] indexes = context.indexes;
+		conf.getIndexFor(coordinates, indexes);
+		root.getNeighborhood(indexes, neighborhoodSize, result);
+	}
+
+	protected void visitNeighborhood(double[] coordinates, int neighborhoodSize, QueryContext<T> context,
+			NeighborhoodVisitor<? super T> visitor) {
+
+		visitNeighborhoodRows(coordinates, neighborhoodSize, context, row -> visitor.visit(data.get(row)));
+	}
+
+	protected void visitNeighborhoodRows(double[] coordinates, int neighborhoodSize, QueryContext<T> context,
+			RowVisitor visitor) {
+
+		ensureIndexed();
+
+		int[] indexes = context.indexes;
+		conf.getIndexFor(coordinates, indexes);
+		root.visitNeighborhood(indexes, neighborhoodSize, visitor);
+	}
+
+	/**
+	 * Scratch buffers for the queries of a single thread.
+	 */
+	public static class QueryContext<V> {
+		protected final List<V> result = new ArrayList<>();
+		protected final int[] indexes;
+		protected final int[] low;
+		protected final int[] high;
+		protected final int[] current;
+		// start and end positions of the ranges found by a flat grid query
+		protected int[] ranges = new int[16];
+
+		public QueryContext(int dim) {
+			indexes = new int[dim];
+			low = new int[dim];
+			high = new int[dim];
+			current = new int[dim];
+		}
+
+		public List<V> getResult() {
+			return result;
 		}
 	}
 
@@ -138,7 +426,10 @@ public class IndexedDataset<T extends DatasetPoint> {
 		double[] nNodes;
 
 		public int getIndexFor(double[] coordinates, int coordIndex) {
-			double coord = coordinates[coordIndex];
+			return getIndexFor(coordinates[coordIndex], coordIndex);
+		}
+
+		public int getIndexFor(double coord, int coordIndex) {
 			double offset = offsets[coordIndex];
 			double width = cellSizes[coordIndex];
 			int index = (int) Math.floor((coord - offset) / width);
@@ -146,7 +437,10 @@ public class IndexedDataset<T extends DatasetPoint> {
 		}
 
 		public int[] getIndexFor(double[] coordinates) {
-			int[] indexes = new int[coordinates.length];
+			return getIndexFor(coordinates, new int[coordinates.length]);
+		}
+
+		public int[] getIndexFor(double[] coordinates, int[] indexes) {
 			for (int i = 0; i < indexes.length; i++) {
 				indexes[i] = getIndexFor(coordinates, i);
 			}
@@ -158,14 +452,23 @@ public class IndexedDataset<T extends DatasetPoint> {
 		int coordIndex;
 		Configuration conf;
 
-		protected List<V> points = null;
+		protected int[] rows = null;
+		protected int nRows = 0;
 		protected Map<Integer, Node<V>> children = null;
 
 		public Node(int coordIndex, Configuration conf) {
 			this.coordIndex = coordIndex;
 			this.conf = conf;
+		}
+
+		protected void countNodes(double[] nNodes) {
 			if (coordIndex >= 0) {
-				conf.nNodes[coordIndex]++;
+				nNodes[coordIndex]++;
+			}
+			if (children != null) {
+				for (Node<V> child : children.values()) {
+					child.countNodes(nNodes);
+				}
 			}
 		}
 
@@ -174,44 +477,48 @@ public class IndexedDataset<T extends DatasetPoint> {
 					|| conf.lastCoordToIndex >= 0 && conf.lastCoordToIndex == this.coordIndex);
 		}
 
-		public void indexPoint(V point) {
+		public void indexPoint(double[] coordinates, int row) {
 			if (isLeaf()) {
-				if (points == null) {
-					points = new LinkedList<V>();
+				if (rows == null) {
+					rows = new int[4];
+				} else if (nRows == rows.length) {
+					rows = Arrays.copyOf(rows, 2 * nRows);
 				}
-				points.add(point);
+				rows[nRows++] = row;
 			} else {
 				if (children == null) {
 					children = new HashMap<>();
 				}
-				int index = conf.getIndexFor(point.getCoordinates(), coordIndex + 1);
+				int index = conf.getIndexFor(coordinates, coordIndex + 1);
 				Node<V> child = children.get(index);
 				if (child == null) {
 					child = new Node<V>(coordIndex + 1, conf);
 					children.put(index, child);
 				}
-				child.indexPoint(point);
+				child.indexPoint(coordinates, row);
 			}
 		}
 
-		public List<V> getCell(int[] indexes) {
+		public Node<V> getLeaf(int[] indexes) {
 			if (isLeaf()) {
-				return points;
+				return this;
 			} else {
-				List<V> result = null;
+				Node<V> result = null;
 				if (children != null) {
 					Node<V> child = children.get(indexes[coordIndex + 1]);
 					if (child != null) {
-						result = child.getCell(indexes);
+						result = child.getLeaf(indexes);
 					}
 				}
 				return result;
 			}
 		}
 
-		public void getNeighborhood(int[] indexes, int size, List<V> accumulator) {
+		public void getNeighborhood(int[] indexes, int size, List<? super T> accumulator) {
 			if (isLeaf()) {
-				accumulator.addAll(points);
+				for (int i = 0; i < nRows; i++) {
+					accumulator.add(data.get(rows[i]));
+				}
 			} else {
 				if (children != null) {
 					int index = indexes[coordIndex + 1];
@@ -225,6 +532,28 @@ public class IndexedDataset<T extends DatasetPoint> {
 				}
 			}
 		}
+
+		public boolean visitNeighborhood(int[] indexes, int size, RowVisitor visitor) {
+			if (isLeaf()) {
+				for (int i = 0; i < nRows; i++) {
+					if (!visitor.visit(rows[i])) {
+						return false;
+					}
+				}
+			} else {
+				if (children != null) {
+					int index = indexes[coordIndex + 1];
+					for (int i = index - size; i <= index + size; i++) {
+
+						Node<V> child = children.get(i);
+						if (child != null && !child.visitNeighborhood(indexes, size, visitor)) {
+							return false;
+						}
+					}
+				}
+			}
+			return true;
+		}
 	}
 
 }
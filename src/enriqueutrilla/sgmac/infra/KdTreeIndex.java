@@ -0,0 +1,462 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * KdTreeIndex.java
+ * Spatial index based on a KD-tree. Unlike the grid of IndexedDataset, it
+ * returns exactly the points inside the radius: nodes are pruned using the
+ * Mahalanobis distance (diagonal covariance) from the query to their bounding
+ * box, and leaves are filtered point by point.
+ * Coordinates are stored scaled by 1/sigma in a contiguous array, in the same
+ * order as the leaves of the tree, so Mahalanobis distances are plain
+ * Euclidean distances. The tree is balanced (median splits) and stored as an
+ * implicit binary heap: the children of node i are 2i+1 and 2i+2.
+ * Leaves keep the rows (positions in the data list) of their points.
+ * In single precision mode (by default, when the data is a single precision
+ * PointStore) the scaled coordinates are stored as floats; bounding boxes
+ * are computed from the same rounded values, and distances are accumulated
+ * in double.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.util.Console;
+
+public class KdTreeIndex<T extends DatasetPoint> implements SpatialIndex<T> {
+
+	protected List<T> data;
+	protected PointStore store;
+	protected double[] sigmas;
+	protected int dim;
+	protected int leafSize = 16;
+	protected boolean singlePrecision;
+
+	protected volatile boolean indexed = false;
+	protected int[] rows;
+	protected double[] coords;
+	protected float[] floatCoords;
+	protected int[] nodeStarts;
+	protected int[] nodeEnds;
+	protected double[] nodeMins;
+	protected double[] nodeMaxs;
+
+	protected final ThreadLocal<QueryContext<T>> contexts = ThreadLocal.withInitial(this::newQueryContext);
+
+	public KdTreeIndex(List<T> data, double[] sigmas) {
+		this.data = data;
+		this.store = PointStore.of(data);
+		this.sigmas = sigmas;
+		this.dim = sigmas.length;
+		this.singlePrecision = store != null && store.isSinglePrecision();
+	}
+
+	public KdTreeIndex(List<T> data, double[] sigmas, int leafSize) {
+		this(data, sigmas);
+		this.leafSize = Math.max(1, leafSize);
+	}
+
+	/**
+	 * Stores the scaled coordinates in single precision. Must be set before indexing.
+	 */
+	public KdTreeIndex<T> withSinglePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+		return this;
+	}
+
+	@Override
+	public double[] getSigmas() {
+		return sigmas;
+	}
+
+	@Override
+	public List<T> getAll() {
+		return data;
+	}
+
+	@Override
+	public void indexData() {
+		indexData(false);
+	}
+
+	@Override
+	public synchronized void indexData(boolean parallel) {
+
+		int n = data.size();
+		double[] scaled = new double[n * dim];
+		int[] order = new int[n];
+		IntStream range = IntStream.range(0, n);
+		(parallel ? range.parallel() : range).forEach(i -> {
+			if (store != null) {
+				for (int j = 0; j < dim; j++) {
+					scaled[i * dim + j] = store.get(i, j) / sigmas[j];
+				}
+			} else {
+				double[] coordinates = data.get(i).getCoordinates();
+				for (int j = 0; j < dim; j++) {
+					scaled[i * dim + j] = coordinates[j] / sigmas[j];
+				}
+			}
+			if (singlePrecision) {
+				for (int j = 0; j < dim; j++) {
+					scaled[i * dim + j] = (float) scaled[i * dim + j];
+				}
+			}
+			order[i] = i;
+		});
+
+		int nNodes = getNodeCapacity(0, 0, n);
+		nodeStarts = new int[nNodes];
+		nodeEnds = new int[nNodes];
+		nodeMins = new double[nNodes * dim];
+		nodeMaxs = new double[nNodes * dim];
+		if (n > 0) {
+			if (parallel) {
+				ForkJoinPool.commonPool().invoke(new BuildTask(0, 0, n, order, scaled));
+			} else {
+				buildNode(0, 0, n, order, scaled);
+			}
+		}
+
+		rows = order;
+		coords = singlePrecision ? null : new double[n * dim];
+		floatCoords = singlePrecision ? new float[n * dim] : null;
+		range = IntStream.range(0, n);
+		(parallel ? range.parallel() : range).forEach(i -> {
+			if (singlePrecision) {
+				for (int j = 0; j < dim; j++) {
+					floatCoords[i * dim + j] = (float) scaled[order[i] * dim + j];
+				}
+			} else {
+				System.arraycopy(scaled, order[i] * dim, coords, i * dim, dim);
+			}
+		});
+
+		indexed = true;
+
+		Console.log("KD-tree built with " + nNodes + " nodes, leaf size " + leafSize);
+	}
+
+	protected void ensureIndexed() {
+		if (!indexed) {
+			synchronized (this) {
+				if (!indexed) {
+					indexData();
+				}
+			}
+		}
+	}
+
+	protected boolean isLeaf(int start, int end) {
+		return end - start <= leafSize;
+	}
+
+	protected int getNodeCapacity(int node, int start, int end) {
+		if (isLeaf(start, end)) {
+			return node + 1;
+		}
+		int mid = (start + end) >>> 1;
+		return Math.max(getNodeCapacity(2 * node + 1, start, mid), getNodeCapacity(2 * node + 2, mid, end));
+	}
+
+	protected void buildNode(int node, int start, int end, int[] order, double[] scaled) {
+		if (splitNode(node, start, end, order, scaled)) {
+			int mid = (start + end) >>> 1;
+			buildNode(2 * node + 1, start, mid, order, scaled);
+			buildNode(2 * node + 2, mid, end, order, scaled);
+		}
+	}
+
+	/**
+	 * Computes the bounding box of the node and, if it is not a leaf, reorders
+	 * its points around the median of the coordinate with the largest spread.
+	 * Returns false for leaves.
+	 */
+	protected boolean splitNode(int node, int start, int end, int[] order, double[] scaled) {
+
+		nodeStarts[node] = start;
+		nodeEnds[node] = end;
+
+		// Bounding box, and coordinate with the largest spread
+		int base = node * dim;
+		for (int j = 0; j < dim; j++) {
+			nodeMins[base + j] = Double.POSITIVE_INFINITY;
+			nodeMaxs[base + j] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < end; i++) {
+			int offset = order[i] * dim;
+			for (int j = 0; j < dim; j++) {
+				double value = scaled[offset + j];
+				if (value < nodeMins[base + j]) {
+					nodeMins[base + j] = value;
+				}
+				if (value > nodeMaxs[base + j]) {
+					nodeMaxs[base + j] = value;
+				}
+			}
+		}
+
+		if (!isLeaf(start, end)) {
+			int splitDim = 0;
+			for (int j = 1; j < dim; j++) {
+				if (nodeMaxs[base + j] - nodeMins[base + j] > nodeMaxs[base + splitDim] - nodeMins[base + splitDim]) {
+					splitDim = j;
+				}
+			}
+			select(order, scaled, start, end - 1, (start + end) >>> 1, splitDim);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fork-join build of a subtree. Nodes are stored at fixed heap positions and
+	 * subtrees cover disjoint ranges of points, so the result is the same as
+	 * the sequential build.
+	 */
+	protected class BuildTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private static final int SEQUENTIAL_THRESHOLD = 8192;
+
+		private final int node;
+		private final int start;
+		private final int end;
+		private final int[] order;
+		private final double[] scaled;
+
+		public BuildTask(int node, int start, int end, int[] order, double[] scaled) {
+			this.node = node;
+			this.start = start;
+			this.end = end;
+			this.order = order;
+			this.scaled = scaled;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_THRESHOLD) {
+				buildNode(node, start, end, order, scaled);
+			} else if (splitNode(node, start, end, order, scaled)) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new BuildTask(2 * node + 1, start, mid, order, scaled),
+						new BuildTask(2 * node + 2, mid, end, order, scaled));
+			}
+		}
+	}
+
+	/**
+	 * Partial sort of order[left..right] so that position k holds the median
+	 * along splitDim, with smaller or equal values before and larger or equal
+	 * after (Wirth's selection, robust to repeated values).
+	 */
+	protected void select(int[] order, double[] scaled, int left, int right, int k, int splitDim) {
+		while (left < right) {
+			double pivot = scaled[order[k] * dim + splitDim];
+			int i = left;
+			int j = right;
+			do {
+				while (scaled[order[i] * dim + splitDim] < pivot) {
+					i++;
+				}
+				while (pivot < scaled[order[j] * dim + splitDim]) {
+					j--;
+				}
+				if (i <= j) {
+					swap(order, i, j);
+					i++;
+					j--;
+				}
+			} while (i <= j);
+			if (j < k) {
+				left = i;
+			}
+			if (k < i) {
+				right = j;
+			}
+		}
+	}
+
+	private static void swap(int[] order, int i, int j) {
+		int tmp = order[i];
+		order[i] = order[j];
+		order[j] = tmp;
+	}
+
+	public QueryContext<T> newQueryContext() {
+		ensureIndexed();
+		return new QueryContext<>(dim, nodeStarts.length);
+	}
+
+	@Override
+	public List<T> getNeighborhood(double[] coordinates, double radiusInSigmas) {
+		if (radiusInSigmas < 0) {
+			return getAll();
+		} else {
+			QueryContext<T> context = contexts.get();
+			context.result.clear();
+			visitNeighborhood(coordinates, radiusInSigmas, context, context.collector);
+			return context.result;
+		}
+	}
+
+	@Override
+	public void getNeighborhood(double[] coordinates, double radiusInSigmas, List<T> result) {
+		result.clear();
+		if (radiusInSigmas < 0) {
+			result.addAll(getAll());
+		} else {
+			visitNeighborhood(coordinates, radiusInSigmas, contexts.get(), result::add);
+		}
+	}
+
+	@Override
+	public void visitNeighborhood(double[] coordinates, double radiusInSigmas,
+			NeighborhoodVisitor<? super T> visitor) {
+		if (radiusInSigmas < 0) {
+			for (T point : getAll()) {
+				if (!visitor.visit(point)) {
+					break;
+				}
+			}
+		} else {
+			visitNeighborhood(coordinates, radiusInSigmas, contexts.get(), visitor);
+		}
+	}
+
+	@Override
+	public void visitNeighborhoodRows(double[] coordinates, double radiusInSigmas, RowVisitor visitor) {
+		if (radiusInSigmas < 0) {
+			for (int row = 0; row < data.size(); row++) {
+				if (!visitor.visit(row)) {
+					break;
+				}
+			}
+		} else {
+			visitNeighborhoodRows(coordinates, radiusInSigmas, contexts.get(), visitor);
+		}
+	}
+
+	protected void visitNeighborhood(double[] coordinates, double radiusInSigmas, QueryContext<T> context,
+			NeighborhoodVisitor<? super T> visitor) {
+		visitNeighborhoodRows(coordinates, radiusInSigmas, context, row -> visitor.visit(data.get(row)));
+	}
+
+	protected void visitNeighborhoodRows(double[] coordinates, double radiusInSigmas, QueryContext<T> context,
+			RowVisitor visitor) {
+
+		ensureIndexed();
+		if (rows.length == 0) {
+			return;
+		}
+
+		double[] query = context.query;
+		for (int j = 0; j < dim; j++) {
+			query[j] = coordinates[j] / sigmas[j];
+		}
+		double radius2 = radiusInSigmas * radiusInSigmas;
+
+		int[] stack = context.stack;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int base = node * dim;
+
+			// Squared distance to the closest and furthest points of the bounding box
+			double minDistance2 = 0;
+			double maxDistance2 = 0;
+			for (int j = 0; j < dim; j++) {
+				double q = query[j];
+				double low = nodeMins[base + j];
+				double high = nodeMaxs[base + j];
+				double diff = (q < low) ? low - q : (q > high) ? q - high : 0;
+				minDistance2 += diff * diff;
+				double far = Math.max(q - low, high - q);
+				maxDistance2 += far * far;
+			}
+			if (minDistance2 > radius2) {
+				continue;
+			}
+
+			int start = nodeStarts[node];
+			int end = nodeEnds[node];
+			if (maxDistance2 <= radius2) {
+				// the whole box is inside the radius
+				for (int i = start; i < end; i++) {
+					if (!visitor.visit(rows[i])) {
+						return;
+					}
+				}
+			} else if (isLeaf(start, end)) {
+				for (int i = start; i < end; i++) {
+					if (distance2(i, query) <= radius2 && !visitor.visit(rows[i])) {
+						return;
+					}
+				}
+			} else {
+				stack[top++] = 2 * node + 2;
+				stack[top++] = 2 * node + 1;
+			}
+		}
+	}
+
+	/**
+	 * Squared distance from the scaled query to the point at position i of the
+	 * leaf order.
+	 */
+	protected double distance2(int i, double[] query) {
+		int offset = i * dim;
+		double distance2 = 0;
+		if (floatCoords != null) {
+			for (int j = 0; j < dim; j++) {
+				double diff = floatCoords[offset + j] - query[j];
+				distance2 += diff * diff;
+			}
+		} else {
+			for (int j = 0; j < dim; j++) {
+				double diff = coords[offset + j] - query[j];
+				distance2 += diff * diff;
+			}
+		}
+		return distance2;
+	}
+
+	/**
+	 * Scratch buffers for the queries of a single thread.
+	 */
+	public static class QueryContext<V> {
+		protected final List<V> result = new ArrayList<>();
+		protected final NeighborhoodVisitor<V> collector = result::add;
+		protected final double[] query;
+		protected final int[] stack;
+
+		public QueryContext(int dim, int nNodes) {
+			query = new double[dim];
+			// depth-first traversal keeps at most one pending sibling per level
+			stack = new int[2 * (32 - Integer.numberOfLeadingZeros(Math.max(1, nNodes))) + 2];
+		}
+
+		public List<V> getResult() {
+			return result;
+		}
+	}
+}
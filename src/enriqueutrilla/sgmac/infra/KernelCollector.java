@@ -0,0 +1,128 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * KernelCollector.java
+ * Visitor gathering the kernels of a neighborhood query into a
+ * KernelBatch, either from the points or, for data stored in a
+ * PointStore, directly from the rows of the store. A flat grid in Z-order
+ * gives the positions of the kernels in its own contiguous copy of the
+ * coordinates, which is read instead. Collectors (like batches) are meant to
+ * be kept per thread.
+ * Optionally, the batch of the last query is kept as is when the next query
+ * to a GridIndex (with the same radius) is in the same cell, since it would
+ * return the same kernels.
+ */
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.util.GridCell;
+import enriqueutrilla.sgmac.util.KernelBatch;
+import enriqueutrilla.sgmac.util.KernelProfile;
+
+public class KernelCollector implements NeighborhoodVisitor<DatasetPoint>, RowVisitor {
+
+	protected final KernelBatch batch;
+	protected PointStore store;
+	protected double[] block;
+	protected boolean reuseCells = false;
+	protected boolean reused = false;
+	protected SpatialIndex<?> lastIndex = null;
+	protected double lastRadius;
+	protected GridCell lastCell = null;
+
+	public KernelCollector(int dim) {
+		this(dim, KernelProfile.gaussian());
+	}
+
+	public KernelCollector(int dim, KernelProfile profile) {
+		this.batch = new KernelBatch(dim, profile);
+	}
+
+	public boolean isReuseCells() {
+		return reuseCells;
+	}
+
+	public void setReuseCells(boolean reuseCells) {
+		this.reuseCells = reuseCells;
+		this.lastCell = null;
+	}
+
+	/**
+	 * Whether the last collect kept the batch of the previous one.
+	 */
+	public boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * Clears the batch and gathers the kernels that can contribute at x,
+	 * i.e. those within the support radius of the profile.
+	 */
+	public KernelBatch collect(SpatialIndex<? extends DatasetPoint> kernels, double[] x) {
+		return collect(kernels, x, batch.getProfile().getSupportRadius());
+	}
+
+	/**
+	 * Clears the batch and gathers the neighborhood of x from the index.
+	 */
+	public KernelBatch collect(SpatialIndex<? extends DatasetPoint> kernels, double[] x,
+			double radiusInSigmas) {
+		GridCell cell = (reuseCells && kernels instanceof GridIndex) ? ((GridIndex) kernels).getCell(x) : null;
+		if (cell != null && kernels == lastIndex && radiusInSigmas == lastRadius && cell.equals(lastCell)) {
+			reused = true;
+			return batch;
+		}
+		reused = false;
+		lastIndex = kernels;
+		lastRadius = radiusInSigmas;
+		lastCell = cell;
+		
+		batch.clear();
+		block = (kernels instanceof FlatGridIndexedDataset)
+				? ((FlatGridIndexedDataset<?>) kernels).getCellCoordinates() : null;
+		store = (block == null) ? PointStore.of(kernels.getAll()) : null;
+		if (block != null) {
+			((FlatGridIndexedDataset<?>) kernels).visitNeighborhoodPositions(x, radiusInSigmas, this);
+		} else if (store != null) {
+			kernels.visitNeighborhoodRows(x, radiusInSigmas, this);
+		} else {
+			kernels.visitNeighborhood(x, radiusInSigmas, this);
+		}
+		return batch;
+	}
+
+	@Override
+	public boolean visit(DatasetPoint point) {
+		batch.add(point.getCoordinates());
+		return true;
+	}
+
+	@Override
+	public boolean visit(int row) {
+		if (block != null) {
+			// position in the cell order of the index
+			batch.add(block, row * batch.getDim());
+		} else {
+			batch.add(store, row);
+		}
+		return true;
+	}
+
+	public KernelBatch getBatch() {
+		return batch;
+	}
+}
@@ -18,68 +18,184 @@ package enriqueutrilla.sgmac.infra;
  * ModalClustering.java
  * Basic loop of a Modal Clustering algorithm.
  * Used by both BasicMac and SgMac
+ * Points can also be clustered from the rows of a PointStore; a DatasetPoint
+ * is then only created for the members of the clusters.
+ * If a Whitening is set, the updater works in the whitened space: paths
+ * start from the whitened points and modes are mapped back to the original
+ * units before being compared and stored in the clusters.
+ * With a parallelism above 1 the modes of a block of points are searched
+ * in parallel (the ModeFinder must be thread safe), and then the points of the
+ * block are added to the clusters sequentially, in the order of the input.
+ * The clusters and their members are therefore the same as in a sequential
+ * run, whatever the number of threads.
+ * With a BatchEmEngine, the modes of each batch of points are found by the
+ * engine, all the paths together, and then merged in the same way.
+ * The cluster of each mode is looked up in a ClusterModeIndex.
  */
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntFunction;
 
 import enriqueutrilla.sgmac.dm.Cluster;
 import enriqueutrilla.sgmac.dm.DatasetPoint;
 import enriqueutrilla.sgmac.dm.PathPoint;
 import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.PointStore;
 import enriqueutrilla.sgmac.util.Console;
-import enriqueutrilla.sgmac.util.Distances;
+import enriqueutrilla.sgmac.util.Parallel;
+import enriqueutrilla.sgmac.util.Whitening;
 
 public class ModalClustering {
 	
-	protected PathUpdater updater;
+	protected ModeFinder updater;
 	protected double[] sigma2;
 	protected double threshold;
+	protected Whitening whitening = null;
+	protected int parallelism = 1;
+	protected int blockSize = 4096;
+	protected BatchEmEngine batchEngine = null;
+	protected boolean mergeChainedModes = false;
 
-	public ModalClustering(PathUpdater updater, double sigma2[], double threshold) {
+	public ModalClustering(ModeFinder updater, double sigma2[], double threshold) {
 		super();
 		this.updater = updater;
 		this.sigma2 = sigma2;
 		this.threshold = threshold;
 	}
 
+	public void setWhitening(Whitening whitening) {
+		this.whitening = whitening;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	// Number of threads searching the modes (0 or less for all the processors)
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	// Number of points whose modes are searched in parallel before merging them
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	public BatchEmEngine getBatchEngine() {
+		return batchEngine;
+	}
+
+	// Find the modes with the engine (which has its own updater and
+	// parallelism) instead of following each path with the updater
+	public void setBatchEngine(BatchEmEngine batchEngine) {
+		this.batchEngine = batchEngine;
+	}
+
+	public boolean isMergeChainedModes() {
+		return mergeChainedModes;
+	}
+
+	// Merge the clusters whose modes are chained within the threshold by the
+	// mode of another point (see ClusterModeIndex)
+	public void setMergeChainedModes(boolean mergeChainedModes) {
+		this.mergeChainedModes = mergeChainedModes;
+	}
+
 	public List<Cluster> cluster(List<DatasetPoint> points){
 		
+		PointStore store = PointStore.of(points);
+		if (store != null) {
+			return cluster(store);
+		}
+		return cluster(points.size(), points::get);
+	}
+	
+	public List<Cluster> cluster(PointStore store){
+		
+		// the point of each row is created once, as start of the path and member
+		return cluster(store.size(), store::getPoint);
+	}
+	
+	protected List<Cluster> cluster(int size, IntFunction<? extends DatasetPoint> pointAt){
+		
 		Cluster notConverged = new Cluster(null);
-		List<Cluster> clusters = new ArrayList<>();
+		ClusterModeIndex modes = new ClusterModeIndex(sigma2, threshold, mergeChainedModes);
 		
-		int counter = 0;
-		for (DatasetPoint point: points) {
-			if (counter>0 && counter%10000==0){
-				Console.log("Processing point " + counter + "/" + points.size());
-			}
-			PathPoint mode = updater.findMode(point);
-			if (!mode.isConverged()) {
-				notConverged.add(point);
-			} else {
-				Cluster cluster = findCluster(clusters, mode);
-				if(cluster == null) {
-					cluster = new Cluster(mode);
-					clusters.add(cluster);
+		try (Parallel workers = new Parallel(parallelism)) {
+			int blockSize = (batchEngine != null) ? Math.max(1, batchEngine.getBatchSize())
+					: (workers.getParallelism() > 1) ? Math.max(1, this.blockSize) : 1;
+			DatasetPoint[] blockPoints = new DatasetPoint[Math.min(blockSize, size)];
+			PathPoint[] blockModes = new PathPoint[blockPoints.length];
+			
+			for (int start = 0; start < size; start += blockSize) {
+				final int first = start;
+				int end = Math.min(size, start + blockSize);
+				if (batchEngine != null) {
+					for (int i = first; i < end; i++) {
+						blockPoints[i - first] = pointAt.apply(i);
+					}
+					findModes(blockPoints, blockModes, end - first);
+				} else {
+					workers.forEach(first, end, i -> {
+						DatasetPoint point = pointAt.apply(i);
+						blockPoints[i - first] = point;
+						blockModes[i - first] = findMode(point);
+					});
+				}
+				for (int i = first; i < end; i++) {
+					if (i>0 && i%10000==0){
+						Console.log("Processing point " + i + "/" + size);
+					}
+					addToCluster(modes, notConverged, blockModes[i - first], blockPoints[i - first]);
+					blockPoints[i - first] = null;
+					blockModes[i - first] = null;
 				}
-				cluster.add(point);
 			}
-			counter++;
 		}
+		List<Cluster> clusters = new ArrayList<>(modes.getClusters());
 		if (notConverged.getMembers().size()>0) {
 			clusters.add(notConverged);
 		}
 		return clusters;
 	}
 	
-	protected Cluster findCluster(List<Cluster> clusters, Point mode) {
-		Cluster result = null;
-		for(Cluster cluster:clusters) {
-			if (Distances.mahalanobis(mode, cluster.getMode(), sigma2)<threshold) {
-				result = cluster;
-				continue;
+	protected PathPoint findMode(Point point) {
+		if (whitening == null) {
+			return updater.findMode(point);
+		}
+		PathPoint mode = updater.findMode(new Point(whitening.whiten(point.getCoordinates())));
+		mode.setCoordinates(whitening.unwhiten(mode.getCoordinates()));
+		return mode;
+	}
+	
+	protected void findModes(DatasetPoint[] points, PathPoint[] modes, int size) {
+		Point[] starts = new Point[size];
+		for (int i = 0; i < size; i++) {
+			starts[i] = (whitening == null) ? points[i] : new Point(whitening.whiten(points[i].getCoordinates()));
+		}
+		PathPoint[] found = batchEngine.findModes(starts);
+		for (int i = 0; i < size; i++) {
+			if (whitening != null) {
+				found[i].setCoordinates(whitening.unwhiten(found[i].getCoordinates()));
+			}
+			modes[i] = found[i];
+		}
+	}
+	
+	protected void addToCluster(ClusterModeIndex modes, Cluster notConverged, PathPoint mode, Point point) {
+		if (!mode.isConverged()) {
+			notConverged.add(point);
+		} else {
+			Cluster cluster = modes.find(mode);
+			if(cluster == null) {
+				cluster = modes.add(mode);
 			}
+			cluster.add(point);
 		}
-		return result;
 	}
 }
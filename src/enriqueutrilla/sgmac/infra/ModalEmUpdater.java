@@ -1,12 +1,14 @@
 package enriqueutrilla.sgmac.infra;
 
-import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 import enriqueutrilla.sgmac.dm.DatasetPoint;
 import enriqueutrilla.sgmac.dm.PathPoint;
 import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.TrackedPathPoint;
 import enriqueutrilla.sgmac.util.Distances;
-import enriqueutrilla.sgmac.util.Gaussian;
+import enriqueutrilla.sgmac.util.KernelBatch;
+import enriqueutrilla.sgmac.util.KernelProfile;
 
 /**
  * Copyright 2017 Enrique Utrilla Molina
@@ -27,17 +29,126 @@ import enriqueutrilla.sgmac.util.Gaussian;
  * Path updater of the BasicMac algorithm.
  * Reimplemented by translating the Matlab code available at:
  *    http://personal.psu.edu/jol2/hmac/
+ * The kernels of the neighborhood are evaluated in a KernelBatch. Only the
+ * kernels within the support radius of the KernelProfile are retrieved
+ * (Gaussian by default).
+ * If all the variances are 1 (whitened coordinates), kernels and convergence
+ * use plain squared Euclidean distances.
+ * If the kernels are the rows of a PointStore, their coordinates are read
+ * from the store by row, without creating point objects.
+ * With an EmAcceleration other than NONE, paths are TrackedPathPoints and
+ * take safeguarded extrapolated steps (see EmAcceleration).
+ * The step itself is separated from the neighborhood query, so that
+ * BatchEmEngine can apply the kernels of a cell to several paths.
+ * With a GridIndex, the kernels gathered by a thread are reused while its
+ * path stays in the same cell (see KernelCollector), unless disabled.
  */	
 	
 public class ModalEmUpdater extends PathUpdater{
 
-	protected IndexedDataset<DatasetPoint> kernels = null;
+	protected SpatialIndex<DatasetPoint> kernels = null;
 	protected double[] sigma2;
+	protected double[] invSigma2;
+	protected boolean unit;
 	protected double threshold = 1e-6;
+	protected KernelProfile profile;
+	protected static final double PDF_TOLERANCE = 1e-10;
+	protected EmAcceleration acceleration = EmAcceleration.NONE;
+	protected double relaxationFactor = 1.5;
+	protected double maxStepFactor = 4;
+	protected final LongAdder extrapolatedSteps = new LongAdder();
+	protected final LongAdder undoneSteps = new LongAdder();
+	protected boolean reuseNeighborhoods = true;
+	protected ThreadLocal<KernelCollector> collectors = newCollectors();
+	protected final LongAdder neighborhoodQueries = new LongAdder();
+	protected final LongAdder neighborhoodsReused = new LongAdder();
 	
-	public ModalEmUpdater(IndexedDataset<DatasetPoint> kernels, double[] sigma2) {
+	public ModalEmUpdater(SpatialIndex<DatasetPoint> kernels, double[] sigma2) {
+		this(kernels, sigma2, KernelProfile.gaussian());
+	}
+	
+	public ModalEmUpdater(SpatialIndex<DatasetPoint> kernels, double[] sigma2, KernelProfile profile) {
 		this.kernels = kernels;
+		this.profile = profile;
 		this.sigma2 = sigma2;
+		this.unit = Distances.isUnit(sigma2);
+		this.invSigma2 = null;
+		if (!unit) {
+			this.invSigma2 = new double[sigma2.length];
+			for (int j = 0; j < sigma2.length; j++) {
+				this.invSigma2[j] = 1 / sigma2[j];
+			}
+		}
+	}
+	
+	public SpatialIndex<DatasetPoint> getKernels() {
+		return kernels;
+	}
+
+	public double[] getSigma2() {
+		return sigma2;
+	}
+
+	public KernelProfile getProfile() {
+		return profile;
+	}
+
+	public boolean isReuseNeighborhoods() {
+		return reuseNeighborhoods;
+	}
+
+	// Keep the kernels of the last query while the path stays in the same cell
+	// of a GridIndex (the results are the same either way)
+	public void setReuseNeighborhoods(boolean reuseNeighborhoods) {
+		this.reuseNeighborhoods = reuseNeighborhoods;
+		this.collectors = newCollectors();
+	}
+
+	protected ThreadLocal<KernelCollector> newCollectors() {
+		return ThreadLocal.withInitial(() -> {
+			KernelCollector collector = new KernelCollector(sigma2.length, profile);
+			collector.setReuseCells(reuseNeighborhoods);
+			return collector;
+		});
+	}
+
+	public long getNeighborhoodQueries() {
+		return neighborhoodQueries.sum();
+	}
+
+	public long getNeighborhoodsReused() {
+		return neighborhoodsReused.sum();
+	}
+
+	public EmAcceleration getAcceleration() {
+		return acceleration;
+	}
+
+	public void setAcceleration(EmAcceleration acceleration) {
+		this.acceleration = acceleration;
+	}
+
+	public double getRelaxationFactor() {
+		return relaxationFactor;
+	}
+
+	// Factor of the steps with EmAcceleration.OVER_RELAXATION
+	public void setRelaxationFactor(double relaxationFactor) {
+		this.relaxationFactor = relaxationFactor;
+	}
+
+	public double getMaxStepFactor() {
+		return maxStepFactor;
+	}
+
+	// Largest factor of the steps with EmAcceleration.STEP_DOUBLING
+	public void setMaxStepFactor(double maxStepFactor) {
+		this.maxStepFactor = maxStepFactor;
+	}
+
+	@Override
+	protected PathPoint createPathPoint(Point initial) {
+		return (acceleration == EmAcceleration.NONE) ? super.createPathPoint(initial) : new TrackedPathPoint(initial);
 	}
 	
 	@Override
@@ -48,28 +159,94 @@ public class ModalEmUpdater extends PathUpdater{
 //        p=f/sum(f); // update p
 //        x0=p'*data; // update x
 		
-		double sum = 0;
-		List<DatasetPoint> closeKernels = kernels.getNeighborhood(current.getCoordinates(), 8);
-		double[] f = new double[closeKernels.size()]; 
-		for(int i=0;i<closeKernels.size();i++) {
-			Point kernel=closeKernels.get(i);
-			f[i] = Gaussian.getUnnormalizedGaussian(current, kernel, sigma2);
-			sum += f[i];
+		double[] x = current.getCoordinates();
+		KernelCollector collector = collectors.get();
+		KernelBatch batch = collector.collect(kernels, x);
+		neighborhoodQueries.increment();
+		if (collector.isReused()) {
+			neighborhoodsReused.increment();
 		}
+		step(current, batch);
+	}
+	
+	/**
+	 * EM step of the path with the given kernels, which must include all the
+	 * kernels within the support radius of the current position.
+	 */
+	public void step(PathPoint current, KernelBatch batch) {
+		
+		double[] x = current.getCoordinates();
 		double[] next = new double[current.dim()];
-		for(int i=0;i<closeKernels.size();i++) {
-			double p = f[i]/sum;
-			double[] kernel = closeKernels.get(i).getCoordinates();
-			for (int j=0; j<current.dim();j++) {
-				next[j]+=p*kernel[j];
-			}
+		double pdf = batch.evaluate(x, invSigma2, next);
+		
+		if (current instanceof TrackedPathPoint) {
+			accelerate((TrackedPathPoint) current, x, next, pdf);
+			return;
 		}
-		double distance = Distances.mahalanobis(current.getCoordinates(), next, sigma2);
-		current.setConverged(distance < threshold);
+		current.setConverged(isConverged(x, next));
 		current.setCoordinates(next);
 		
 	}
 	
+	protected void accelerate(TrackedPathPoint current, double[] x, double[] next, double pdf) {
+		
+		// the last extrapolated step went downhill: take the plain step instead
+		// (plain steps are not checked, they are the original algorithm). Near the
+		// mode the changes of the PDF are below the rounding errors of the sum,
+		// so only decreases above a relative tolerance count
+		if (current.hasPrevious() && pdf < current.getPreviousPdf() * (1 - PDF_TOLERANCE)) {
+			undoneSteps.increment();
+			current.setCoordinates(current.getPreviousUpdate());
+			current.setStepFactor(1);
+			current.clearPrevious();
+			return;
+		}
+		
+		if (isConverged(x, next)) {
+			current.setConverged(true);
+			current.setCoordinates(next);
+			return;
+		}
+		
+		// the factor is 1 for the first step and after an undone step
+		double factor = current.getStepFactor();
+		double[] target = new double[x.length];
+		for (int j = 0; j < x.length; j++) {
+			target[j] = x[j] + factor * (next[j] - x[j]);
+		}
+		if (factor > 1) {
+			extrapolatedSteps.increment();
+			current.setPrevious(pdf, next);
+		} else {
+			current.clearPrevious();
+		}
+		current.setStepFactor((acceleration == EmAcceleration.OVER_RELAXATION) ? relaxationFactor
+				: Math.min(2 * factor, maxStepFactor));
+		current.setCoordinates(target);
+	}
+	
+	protected boolean isConverged(double[] x, double[] next) {
+		if (unit) {
+			return Distances.squaredEuclidean(x, next) < threshold * threshold;
+		} else {
+			return Distances.mahalanobis(x, next, sigma2) < threshold;
+		}
+	}
+	
+	@Override
+	public String getConvergenceStats() {
+		String stats = super.getConvergenceStats();
+		if (stats == null) {
+			return stats;
+		}
+		if (acceleration != EmAcceleration.NONE) {
+			stats += "\nAcceleration " + acceleration + ": " + extrapolatedSteps.sum() + " extrapolated steps, "
+					+ undoneSteps.sum() + " undone";
+		}
+		if (reuseNeighborhoods && kernels instanceof GridIndex) {
+			stats += "\n" + getNeighborhoodReuseStats(getNeighborhoodQueries(), getNeighborhoodsReused());
+		}
+		return stats;
+	}
 	
-
 }
@@ -0,0 +1,41 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ModeFinder.java
+ * Finds the mode that the path from a point leads to. Implemented by the
+ * path updaters, which follow the path step by step, and by the
+ * SampleGraphUpdater, which looks it up in a precomputed graph.
+ * Implementations used by ModalClustering or ClusterAssigner with more than
+ * one thread must be thread safe.
+ */
+
+import enriqueutrilla.sgmac.dm.PathPoint;
+import enriqueutrilla.sgmac.dm.Point;
+
+public interface ModeFinder {
+
+	/**
+	 * End of the path from the initial point; it is only a mode if it is
+	 * converged.
+	 */
+	public PathPoint findMode(Point initial);
+
+	/**
+	 * Summary of the paths followed so far, or null if there were none.
+	 */
+	public String getConvergenceStats();
+}
@@ -0,0 +1,100 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * NearestSearch.java
+ * Visitor keeping the row of the point closest to a given point (Mahalanobis
+ * distance) among the rows it visits, used by the nearest neighbor queries
+ * of the indexes. Rows can be visited more than once. Points of a PointStore
+ * are read from the store. On ties, the first row visited is kept.
+ */
+
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PointStore;
+
+public class NearestSearch<T extends DatasetPoint> implements RowVisitor {
+
+	protected final List<T> data;
+	protected final PointStore store;
+	protected final double[] coordinates;
+	protected final double[] sigma2;
+	protected final boolean skipCoincident;
+	protected final double[] buffer;
+
+	protected int nearest = -1;
+	protected double distance2 = Double.POSITIVE_INFINITY;
+	protected int visited = 0;
+
+	public NearestSearch(List<T> data, double[] coordinates, double[] sigmas,
+			boolean skipCoincident) {
+		this.data = data;
+		this.store = PointStore.of(data);
+		this.coordinates = coordinates;
+		this.sigma2 = new double[sigmas.length];
+		for (int j = 0; j < sigmas.length; j++) {
+			sigma2[j] = sigmas[j] * sigmas[j];
+		}
+		this.skipCoincident = skipCoincident;
+		this.buffer = (store != null) ? new double[sigmas.length] : null;
+	}
+
+	@Override
+	public boolean visit(int row) {
+		visited++;
+		double[] point = (store != null) ? store.getCoordinates(row, buffer) : data.get(row).getCoordinates();
+		double accum = 0;
+		for (int j = 0; j < coordinates.length; j++) {
+			double diff = coordinates[j] - point[j];
+			accum += diff * diff / sigma2[j];
+		}
+		if (accum < distance2 && (accum > 0 || !skipCoincident)) {
+			distance2 = accum;
+			nearest = row;
+		}
+		return true;
+	}
+
+	/**
+	 * Row of the nearest point so far, or -1.
+	 */
+	public int getNearestRow() {
+		return nearest;
+	}
+
+	public T getNearest() {
+		return (nearest >= 0) ? data.get(nearest) : null;
+	}
+
+	/**
+	 * Distance (in sigmas) to the nearest point so far, infinite if none.
+	 */
+	public double getDistance() {
+		return Math.sqrt(distance2);
+	}
+
+	/**
+	 * Number of rows visited since the last call to resetVisited.
+	 */
+	public int getVisited() {
+		return visited;
+	}
+
+	public void resetVisited() {
+		visited = 0;
+	}
+}
@@ -0,0 +1,98 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * NeighborhoodCache.java
+ * Neighborhood queries of a path that reuse the last result (per thread and
+ * radius) while the query point stays in the same cell of a GridIndex,
+ * where the result would be exactly the same. Queries to other indexes go
+ * straight to the index.
+ * The returned lists belong to the cache and must not be modified; they
+ * are valid until the next query of the same thread with the same radius.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.util.GridCell;
+
+public class NeighborhoodCache<T extends DatasetPoint> {
+
+	protected final SpatialIndex<T> index;
+	protected final GridIndex grid;
+	protected final ThreadLocal<List<Entry<T>>> entries = ThreadLocal.withInitial(ArrayList::new);
+
+	protected final LongAdder queries = new LongAdder();
+	protected final LongAdder reused = new LongAdder();
+
+	public NeighborhoodCache(SpatialIndex<T> index, boolean enabled) {
+		this.index = index;
+		this.grid = (enabled && index instanceof GridIndex) ? (GridIndex) index : null;
+	}
+
+	public boolean isEnabled() {
+		return grid != null;
+	}
+
+	public List<T> getNeighborhood(double[] coordinates, double radiusInSigmas) {
+		queries.increment();
+		if (grid == null) {
+			return index.getNeighborhood(coordinates, radiusInSigmas);
+		}
+		Entry<T> entry = getEntry(radiusInSigmas);
+		GridCell cell = grid.getCell(coordinates);
+		if (cell.equals(entry.cell)) {
+			reused.increment();
+		} else {
+			index.getNeighborhood(coordinates, radiusInSigmas, entry.points);
+			entry.cell = cell;
+		}
+		return entry.points;
+	}
+
+	protected Entry<T> getEntry(double radiusInSigmas) {
+		List<Entry<T>> entries = this.entries.get();
+		for (Entry<T> entry : entries) {
+			if (entry.radius == radiusInSigmas) {
+				return entry;
+			}
+		}
+		Entry<T> entry = new Entry<>(radiusInSigmas);
+		entries.add(entry);
+		return entry;
+	}
+
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	public long getReused() {
+		return reused.sum();
+	}
+
+	protected static class Entry<T> {
+
+		protected final double radius;
+		protected final List<T> points = new ArrayList<>();
+		protected GridCell cell = null;
+
+		protected Entry(double radius) {
+			this.radius = radius;
+		}
+	}
+}
@@ -18,6 +18,11 @@ package enriqueutrilla.sgmac.infra;
  * PathUpdater.java
  * Base abstract class that traverses a path from an initial point based
  * on incremental updates.
+ * Paths can be followed concurrently from several threads (as long as the
+ * update of the subclass is thread safe); the convergence statistics are
+ * kept in atomic counters (ConvergenceStats).
+ * An optional AttractionCache stops a path as soon as it enters a cell
+ * already visited by a converged path, with the mode of that path.
  */	
 	
 
@@ -28,11 +33,13 @@ import java.util.List;
 import enriqueutrilla.sgmac.dm.PathPoint;
 import enriqueutrilla.sgmac.dm.Point;
 import enriqueutrilla.sgmac.util.Console;
+import enriqueutrilla.sgmac.util.GridCell;
 
-public abstract class PathUpdater {
+public abstract class PathUpdater implements ModeFinder {
 	
-	private List<Integer> iterationsToConverge = new ArrayList<>();
+	private final ConvergenceStats stats = new ConvergenceStats();
 	private int maxIterations = Integer.MAX_VALUE;
+	private AttractionCache attractionCache = null;
 	
 	public void setMaxIterations(int maxIterations){
 		this.maxIterations = maxIterations;
@@ -42,8 +49,22 @@ public abstract class PathUpdater {
 		return this.maxIterations;
 	}
 
+	public AttractionCache getAttractionCache(){
+		return attractionCache;
+	}
+	
+	public void setAttractionCache(AttractionCache attractionCache){
+		this.attractionCache = attractionCache;
+	}
+
 	public abstract void update(PathPoint current);
+	
+	// Point that follows the path; updaters keeping state per path return a subclass
+	protected PathPoint createPathPoint(Point initial){
+		return new PathPoint(initial);
+	}
 
+	@Override
 	public PathPoint findMode(Point initial){
 		return findMode(initial, false);
 	}
@@ -51,8 +72,21 @@ public abstract class PathUpdater {
 	public PathPoint findMode(Point initial, boolean trace) {
 		
 		int nIterations = 0;
-		PathPoint current = new PathPoint(initial);
+		PathPoint current = createPathPoint(initial);
+		AttractionCache cache = attractionCache;
+		List<GridCell> visited = (cache != null) ? new ArrayList<>() : null;
+		AttractionCache.Entry hit = null;
 		while (!current.isConverged() && nIterations<maxIterations) {
+			if (cache != null) {
+				GridCell cell = cache.getCell(current.getCoordinates());
+				hit = cache.lookup(cell);
+				if (hit != null) {
+					current.setCoordinates(hit.getMode());
+					current.setConverged(true);
+					break;
+				}
+				visited.add(cell);
+			}
 			update(current);
 			if (trace){
 				Console.log(nIterations + ": " + Arrays.toString(current.getCoordinates()));
@@ -60,45 +94,28 @@ public abstract class PathUpdater {
 			nIterations ++;
 		}
 		if (current.isConverged()){
-			iterationsToConverge.add(nIterations);
+			addIterationsToConverge(nIterations);
+		}
+		if (cache != null) {
+			cache.recordPath(hit);
+			if (current.isConverged()) {
+				cache.register(visited, Arrays.copyOf(current.getCoordinates(), current.dim()), (hit != null) ? hit.getRemaining() : 0);
+			}
 		}
 		return current;
 	}
 	
+	protected void addIterationsToConverge(int iterations){
+		stats.add(iterations, maxIterations);
+	}
+	
+	@Override
 	public String getConvergenceStats(){
-		
-		int total = iterationsToConverge.size();
-		int converged = 0;
-		long accumMean = 0;
-		int minIteration = Integer.MAX_VALUE;
-		int maxIteration = 0;
-		
-		if (total>0){
-			for(Integer iteration: iterationsToConverge){
-				if (iteration < maxIterations){
-					converged++;
-					accumMean += iteration;
-					
-					if (iteration > 0 && iteration < minIteration){
-						minIteration = iteration;
-					}
-					
-					if (iteration > maxIteration){
-						maxIteration = iteration;
-					}
-					
-				} 
-			}
-			
-			return "Total points: " + total 
-				   + ", converged " + converged 
-				   + " (" + (int)(100*converged/total) + "%)\n"
-                   + "Iterations to converge: "
-                   + minIteration + " min, " 
-                   + (int)(accumMean/converged) + " average, " 
-                   + maxIteration + " max";
-		} else {
-			return null;
-		}
+		return stats.getSummary();
+	}
+	
+	protected static String getNeighborhoodReuseStats(long queries, long reused){
+		return "Neighborhoods reused: " + reused + " of " + queries + " queries ("
+				+ ((queries > 0) ? (int)(100*reused/queries) : 0) + "%)";
 	}
 }
@@ -17,40 +17,75 @@ package enriqueutrilla.sgmac.infra;
  * 
  * PdfGradientSampler.java
  * Class that calculates the value and gradient of the PDF function at a given point.
+ * Each sample is a single neighborhood query, by default at the support radius
+ * of the KernelProfile, whose kernels are evaluated in a KernelBatch. The PDF
+ * value and the gradient are written in place in a SampledPdfStore, without
+ * temporary arrays, and retrieval and evaluation times are added to a Metrics.
+ * The samples can be calculated in parallel; they are returned in the order
+ * of the sample points anyway.
  */	
 
 import java.util.ArrayList;
 import java.util.List;
 
 import enriqueutrilla.sgmac.dm.DatasetPoint;
-import enriqueutrilla.sgmac.dm.Point;
 import enriqueutrilla.sgmac.dm.SampledPdfPoint;
+import enriqueutrilla.sgmac.dm.SampledPdfStore;
 import enriqueutrilla.sgmac.util.Console;
-import enriqueutrilla.sgmac.util.Gaussian;
+import enriqueutrilla.sgmac.util.KernelBatch;
+import enriqueutrilla.sgmac.util.KernelProfile;
+import enriqueutrilla.sgmac.util.Metrics;
+import enriqueutrilla.sgmac.util.Parallel;
 
 public class PdfGradientSampler<T extends DatasetPoint> {
 	
 	private List<T> samplePoints;
 	private double[] sigma2;
+	private double[] invSigma2;
 	
-	private int neighborhoodInSigmas = 8;
+	private double radiusInSigmas = 0;
 	private boolean logStats = true;
+	private boolean singlePrecision = false;
+	private KernelProfile kernelProfile = KernelProfile.gaussian();
+	private int parallelism = 1;
+	private Metrics metrics = new Metrics();
 	
-	private long accumulatedRetrievalTime = 0;
-	private long accumulatedKernelsRetrieved = 0;
-	private long accumulatedPdfCalculationTime = 0;
+	private ThreadLocal<SampleContext> contexts;
+	
+	// Per thread collector and buffer for the weighted mean of the kernels
+	private static class SampleContext {
+		final KernelCollector collector;
+		final double[] mean;
+		
+		SampleContext(int dim, KernelProfile profile) {
+			this.collector = new KernelCollector(dim, profile);
+			this.mean = new double[dim];
+		}
+	}
 	
 	public PdfGradientSampler(List<T> samplePoints, double[] sigma2){
 		this.samplePoints = samplePoints;
 		this.sigma2 = sigma2;
+		this.invSigma2 = new double[sigma2.length];
+		for (int j=0; j<sigma2.length; j++) {
+			invSigma2[j] = 1 / sigma2[j];
+		}
+		this.contexts = newContexts();
 	}
 	
-	public int getNeighborhoodInSigmas() {
-		return neighborhoodInSigmas;
+	private ThreadLocal<SampleContext> newContexts() {
+		KernelProfile profile = kernelProfile;
+		return ThreadLocal.withInitial(() -> new SampleContext(sigma2.length, profile));
+	}
+	
+	public double getRadiusInSigmas() {
+		return radiusInSigmas;
 	}
 
-	public void setNeighborhoodInSigmas(int neighborhoodInSigmas) {
-		this.neighborhoodInSigmas = neighborhoodInSigmas;
+	// Radius of the neighborhood query of each sample (0 or less for the
+	// support radius of the kernel profile)
+	public void setRadiusInSigmas(double radiusInSigmas) {
+		this.radiusInSigmas = radiusInSigmas;
 	}
 
 	public boolean isLogStats() {
@@ -61,66 +96,113 @@ public class PdfGradientSampler<T extends DatasetPoint> {
 		this.logStats = logStats;
 	}
 
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+
+	// Store the gradients of the samples in single precision
+	public void setSinglePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+	}
+
+	public KernelProfile getKernelProfile() {
+		return kernelProfile;
+	}
+
+	public void setKernelProfile(KernelProfile kernelProfile) {
+		this.kernelProfile = kernelProfile;
+		this.contexts = newContexts();
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	// Number of threads calculating the samples (0 or less for all the processors)
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	// Sink of the "pdf kernel retrieval" and "pdf kernel evaluation" timers
+	// and the "pdf kernels retrieved" counter
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	
 	
+	public List<SampledPdfPoint> samplePdf(SpatialIndex<T> kernels){
+		
+		SampledPdfStore store = sampleStore(kernels);
+		List<SampledPdfPoint> samples = new ArrayList<>(store.size());
+		for (int i=0; i<store.size(); i++) {
+			samples.add(store.getSample(i, samplePoints.get(i)));
+		}
+		return samples;
+	}
 	
-	public List<SampledPdfPoint> samplePdf(IndexedDataset<T> kernels){
+	/**
+	 * Samples the PDF at every sample point, row i of the store being the
+	 * sample of point i.
+	 */
+	public SampledPdfStore sampleStore(SpatialIndex<T> kernels){
 		
-		List<SampledPdfPoint> samples = new ArrayList<>(samplePoints.size());
+		SampledPdfStore store = new SampledPdfStore(samplePoints.size(), sigma2.length, singlePrecision);
+		long retrievalTime = metrics.getTimeNanos("pdf kernel retrieval");
+		long evaluationTime = metrics.getTimeNanos("pdf kernel evaluation");
+		long kernelsRetrieved = metrics.getCount("pdf kernels retrieved");
 
-		for(T point:samplePoints) {
-			SampledPdfPoint sample = getSampledPdf(point, kernels, sigma2);
-			samples.add(sample);
+		try (Parallel workers = new Parallel(parallelism)) {
+			workers.forEach(0, store.size(), i -> sample(samplePoints.get(i), kernels, store, i));
 		}
 		
-		if (logStats){
-			Console.log("Avg retrieval time: " + accumulatedRetrievalTime/samplePoints.size() + " ns");
-			Console.log("Avg kernels retrieved  time: " + accumulatedKernelsRetrieved/samplePoints.size());
-			Console.log("Avg PDF calculation time: " + accumulatedPdfCalculationTime/samplePoints.size() + " ns");
+		if (logStats && store.size() > 0){
+			int n = store.size();
+			Console.log("Avg retrieval time: " + (metrics.getTimeNanos("pdf kernel retrieval") - retrievalTime)/n + " ns");
+			Console.log("Avg kernels retrieved: " + (metrics.getCount("pdf kernels retrieved") - kernelsRetrieved)/n);
+			Console.log("Avg PDF evaluation time: " + (metrics.getTimeNanos("pdf kernel evaluation") - evaluationTime)/n + " ns");
 		}
 			
-		return samples;
+		return store;
 	}
 	
-	public SampledPdfPoint getSampledPdf(final T x, IndexedDataset<T> ds, double sigma2[]) {
-				
-		long startTime, endTime;
-		
-		startTime = System.nanoTime();
-		List<T> kernels = ds.getNeighborhood(x.getCoordinates(), neighborhoodInSigmas);
-		
-		endTime = System.nanoTime();
+	/**
+	 * Samples the PDF at x on its own, with the variances of the sampler.
+	 */
+	public SampledPdfPoint getSampledPdf(final T x, SpatialIndex<T> ds) {
 		
-		accumulatedRetrievalTime += (endTime-startTime)/1000;
+		SampledPdfStore store = new SampledPdfStore(1, x.dim(), singlePrecision);
+		sample(x, ds, store, 0);
+		return store.getSample(0, x);
+	}
+	
+	/**
+	 * Writes the PDF value and the gradient (mean shift vector) at x in a
+	 * row of the store.
+	 */
+	protected void sample(T x, SpatialIndex<T> ds, SampledPdfStore store, int row) {
 		
-		accumulatedKernelsRetrieved += kernels.size();
+		SampleContext context = contexts.get();
+		double[] coordinates = x.getCoordinates();
+		long startTime = System.nanoTime();
+		KernelBatch batch = (radiusInSigmas > 0) ? context.collector.collect(ds, coordinates, radiusInSigmas)
+				: context.collector.collect(ds, coordinates);
+		long retrievedTime = System.nanoTime();
 		
-		double sum=0;
-		List<T> closeKernels = ds.getNeighborhood(x.getCoordinates(), 8);
-		double[] f = new double[closeKernels.size()]; 
-		for(int i=0;i<closeKernels.size();i++) {
-			Point kernel=closeKernels.get(i);
-			f[i] = Gaussian.getUnnormalizedGaussian(x, kernel, sigma2);
-			sum += f[i];
+		double sum = batch.evaluate(coordinates, invSigma2, context.mean);
+		store.setPdfValue(row, sum);
+		for (int j=0; j<coordinates.length; j++) {
+			store.setGradient(row, j, context.mean[j] - coordinates[j]);
 		}
-		double[] next = new double[x.dim()];
-		for(int i=0;i<closeKernels.size();i++) {
-			double p = f[i]/sum;
-			double[] kernel = closeKernels.get(i).getCoordinates();
-			for (int j=0; j<x.dim();j++) {
-				next[j]+=p*kernel[j];
-			}
-		}
-		double[] gradient = new double[x.dim()];
-		for (int i=0;i<x.dim();i++){
-			gradient[i] = next[i]-x.getCoordinates()[i];
-		}
-		final SampledPdfPoint point = new SampledPdfPoint(x, sum, gradient);
+		long endTime = System.nanoTime();
 		
-		endTime = System.nanoTime();
-		
-		accumulatedPdfCalculationTime += (endTime-startTime)/1000;
-
-		return point;
+		metrics.addTime("pdf kernel retrieval", retrievedTime - startTime);
+		metrics.addTime("pdf kernel evaluation", endTime - retrievedTime);
+		metrics.add("pdf kernels retrieved", batch.size());
 	}
 	
 }
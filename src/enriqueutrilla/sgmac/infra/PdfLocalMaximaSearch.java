@@ -19,6 +19,14 @@ package enriqueutrilla.sgmac.infra;
  * Class that finds which sampled points are a local maxima, meaning that
  * no other sampled point has a higher PDF value in an n-sphere of radius
  * threshold in Mahalanobis distance.
+ * If all the variances are 1 (whitened coordinates), distances are plain
+ * Euclidean distances.
+ * Each sample is checked independently, so the search can run in parallel;
+ * the maxima are returned in the order of the samples anyway.
+ * Optionally, the neighbors of all the samples are first gathered in a
+ * RadiusNeighborGraph, which is dropped once the search returns. The maxima
+ * are the same, and sparse samples with a neighbor in the graph do not need
+ * a closest sample query.
  */	
 
 import java.util.ArrayList;
@@ -26,68 +34,135 @@ import java.util.List;
 
 import enriqueutrilla.sgmac.dm.SampledPdfPoint;
 import enriqueutrilla.sgmac.util.Distances;
+import enriqueutrilla.sgmac.util.Metrics;
+import enriqueutrilla.sgmac.util.Parallel;
 
 public class PdfLocalMaximaSearch {
 
 	private double threshold;
 	private double[] sigmas2;
+	private boolean unit;
+	private int parallelism = 1;
+	private boolean useNeighborGraph = false;
+	private Metrics metrics = new Metrics();
 
 	public PdfLocalMaximaSearch(double[] sigmas2, double threshold) {
 		this.sigmas2 = sigmas2;
 		this.threshold = threshold;
+		this.unit = Distances.isUnit(sigmas2);
 	}
 
-	public List<SampledPdfPoint> getLocalMaxima(IndexedDataset<SampledPdfPoint> samples) {
+	public int getParallelism() {
+		return parallelism;
+	}
 
-		List<SampledPdfPoint> maxima = new ArrayList<>();
+	// Number of threads checking the samples (0 or less for all the processors)
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
 
-		for (SampledPdfPoint u : samples.getAll()) {
-			boolean localMaximum = true;
-			List<SampledPdfPoint> neighborhood = samples.getNeighborhood(u.getCoordinates(), threshold);
-			if (neighborhood.size() > 2) {
-				for (SampledPdfPoint x : neighborhood) {
-					if (x.getPdfValue() > u.getPdfValue() && Distances.mahalanobis(x, u, sigmas2) < threshold) {
-						localMaximum = false;
-					}
-				}
-				if (localMaximum) {
-					u.setLocalMaximum(true);
-					maxima.add(u);
-				}
+	public boolean isUseNeighborGraph() {
+		return useNeighborGraph;
+	}
+
+	// Gather the neighbors of the samples in a RadiusNeighborGraph before
+	// checking them (one int per pair of samples closer than the threshold)
+	public void setUseNeighborGraph(boolean useNeighborGraph) {
+		this.useNeighborGraph = useNeighborGraph;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	// Sink of the "neighbor graph links" counter
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public List<SampledPdfPoint> getLocalMaxima(SpatialIndex<SampledPdfPoint> samples) {
+
+		List<SampledPdfPoint> all = samples.getAll();
+		boolean[] isMaximum = new boolean[all.size()];
+		try (Parallel workers = new Parallel(parallelism)) {
+			if (useNeighborGraph) {
+				RadiusNeighborGraph graph = new RadiusNeighborGraph(sigmas2, threshold).build(samples, parallelism);
+				metrics.add("neighbor graph links", graph.getLinks());
+				workers.forEach(0, all.size(), i -> isMaximum[i] = isLocalMaximum(i, graph, samples));
 			} else {
-				SampledPdfPoint closestSample = getClosestSample(u, samples, sigmas2);
-				if (closestSample.getPdfValue() < u.getPdfValue()) {
-					u.setLocalMaximum(true);
-					maxima.add(u);
-				}
+				workers.forEach(0, all.size(), i -> isMaximum[i] = isLocalMaximum(all.get(i), samples));
+			}
+		}
+
+		List<SampledPdfPoint> maxima = new ArrayList<>();
+		for (int i = 0; i < isMaximum.length; i++) {
+			if (isMaximum[i]) {
+				SampledPdfPoint u = all.get(i);
+				u.setLocalMaximum(true);
+				maxima.add(u);
 			}
 		}
 		return maxima;
 	}
 
-	protected SampledPdfPoint getClosestSample(SampledPdfPoint current, IndexedDataset<SampledPdfPoint> pdfSamplesIdx,
-			double[] sigmas2) {
-
-		double minDistance = Double.MAX_VALUE;
-		SampledPdfPoint closestSample = null;
+	protected boolean isLocalMaximum(SampledPdfPoint u, SpatialIndex<SampledPdfPoint> samples) {
 
-		// Try first looking for data at 3 sigmas, then data at 7 sigmas, then all
-		double[] radius = new double[] { 3.0, 7.0, -1 };
-		int i = 0;
+		List<SampledPdfPoint> neighborhood = samples.getNeighborhood(u.getCoordinates(), threshold);
+		if (neighborhood.size() > 2) {
+			for (SampledPdfPoint x : neighborhood) {
+				if (x.getPdfValue() > u.getPdfValue() && distance(x.getCoordinates(), u.getCoordinates()) < threshold) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			SampledPdfPoint closestSample = getClosestSample(u, samples);
+			return closestSample == null || closestSample.getPdfValue() < u.getPdfValue();
+		}
+	}
 
-		while (closestSample == null && i < radius.length) {
-			for (SampledPdfPoint pdfSample : pdfSamplesIdx.getNeighborhood(current.getCoordinates(), radius[i])) {
+	// Same criteria as isLocalMaximum(u, samples), with the neighbors from the graph
+	protected boolean isLocalMaximum(int row, RadiusNeighborGraph graph, SpatialIndex<SampledPdfPoint> samples) {
 
-				double distance = Distances.mahalanobis(current, pdfSample, sigmas2);
+		List<SampledPdfPoint> all = samples.getAll();
+		SampledPdfPoint u = all.get(row);
+		int nNeighbors = graph.getNeighborCount(row);
+		if (graph.getQuerySize(row) > 2) {
+			for (int k = 0; k < nNeighbors; k++) {
+				if (all.get(graph.getNeighbor(row, k)).getPdfValue() > u.getPdfValue()) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			// all the samples closer than the threshold are in the graph
+			SampledPdfPoint closestSample = null;
+			double minDistance = Double.MAX_VALUE;
+			for (int k = 0; k < nNeighbors; k++) {
+				SampledPdfPoint x = all.get(graph.getNeighbor(row, k));
+				double distance = distance(x.getCoordinates(), u.getCoordinates());
 				if (distance > 0 && distance < minDistance) {
 					minDistance = distance;
-					closestSample = pdfSample;
+					closestSample = x;
 				}
-
 			}
-			i++;
+			if (closestSample == null) {
+				closestSample = getClosestSample(u, samples);
+			}
+			return closestSample == null || closestSample.getPdfValue() < u.getPdfValue();
 		}
+	}
+
+	// Closest sample other than the ones at the position of current
+	protected SampledPdfPoint getClosestSample(SampledPdfPoint current, SpatialIndex<SampledPdfPoint> pdfSamplesIdx) {
+		return pdfSamplesIdx.getNearest(current.getCoordinates(), true);
+	}
 
-		return closestSample;
+	protected double distance(double[] x, double[] u) {
+		if (unit) {
+			return Math.sqrt(Distances.squaredEuclidean(x, u));
+		} else {
+			return Distances.mahalanobis(x, u, sigmas2);
+		}
 	}
 }
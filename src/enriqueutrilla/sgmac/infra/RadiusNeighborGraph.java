@@ -0,0 +1,147 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * RadiusNeighborGraph.java
+ * Graph linking each point of an index with the other points closer than a
+ * radius (Mahalanobis distance), by their rows in getAll(). The neighbors
+ * are stored in compressed rows: the neighbors of row i are
+ * neighbors[offsets[i]] to neighbors[offsets[i + 1] - 1], in the order the
+ * index returns them. The size of the neighborhood query of each point is
+ * kept too, since grid indexes return extra points beyond the radius.
+ * The queries run in parallel, and the graph does not depend on the number
+ * of threads. It takes one int per link, so dense data with a large radius
+ * needs a lot of memory.
+ * If all the variances are 1 (whitened coordinates), distances are plain
+ * Euclidean distances.
+ */
+
+import java.util.Arrays;
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.util.Distances;
+import enriqueutrilla.sgmac.util.Parallel;
+
+public class RadiusNeighborGraph {
+
+	protected final double radius;
+	protected final double[] sigmas2;
+	protected final boolean unit;
+	protected int[] offsets;
+	protected int[] neighbors;
+	protected int[] querySizes;
+
+	public RadiusNeighborGraph(double[] sigmas2, double radius) {
+		this.sigmas2 = sigmas2;
+		this.radius = radius;
+		this.unit = Distances.isUnit(sigmas2);
+	}
+
+	public <T extends DatasetPoint> RadiusNeighborGraph build(SpatialIndex<T> index, int parallelism) {
+
+		List<T> all = index.getAll();
+		int n = all.size();
+		int[][] rows = new int[n][];
+		querySizes = new int[n];
+		try (Parallel workers = new Parallel(parallelism)) {
+			workers.forEach(0, n, i -> rows[i] = findNeighbors(index, all, i));
+		}
+
+		offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			try {
+				offsets[i + 1] = Math.addExact(offsets[i], rows[i].length);
+			} catch (ArithmeticException e) {
+				throw new IllegalStateException("Too many links for a neighbor graph of radius " + radius);
+			}
+		}
+		neighbors = new int[offsets[n]];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(rows[i], 0, neighbors, offsets[i], rows[i].length);
+			rows[i] = null;
+		}
+		return this;
+	}
+
+	protected <T extends DatasetPoint> int[] findNeighbors(SpatialIndex<T> index, List<T> all, int row) {
+
+		double[] x = all.get(row).getCoordinates();
+		NeighborCollector collector = new NeighborCollector() {
+			@Override
+			public boolean visit(int other) {
+				querySize++;
+				if (other != row && distance(x, all.get(other).getCoordinates()) < radius) {
+					add(other);
+				}
+				return true;
+			}
+		};
+		index.visitNeighborhoodRows(x, radius, collector);
+		querySizes[row] = collector.querySize;
+		return Arrays.copyOf(collector.rows, collector.size);
+	}
+
+	// Rows of the neighbors found by a query
+	protected abstract static class NeighborCollector implements RowVisitor {
+		int querySize = 0;
+		int size = 0;
+		int[] rows = new int[8];
+
+		void add(int row) {
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, 2 * size);
+			}
+			rows[size++] = row;
+		}
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	public int size() {
+		return querySizes.length;
+	}
+
+	public int getNeighborCount(int row) {
+		return offsets[row + 1] - offsets[row];
+	}
+
+	public int getNeighbor(int row, int k) {
+		return neighbors[offsets[row] + k];
+	}
+
+	/**
+	 * Number of points returned by the neighborhood query of the row,
+	 * including itself and the points beyond the radius.
+	 */
+	public int getQuerySize(int row) {
+		return querySizes[row];
+	}
+
+	public long getLinks() {
+		return neighbors.length;
+	}
+
+	protected double distance(double[] x, double[] u) {
+		if (unit) {
+			return Math.sqrt(Distances.squaredEuclidean(x, u));
+		} else {
+			return Distances.mahalanobis(x, u, sigmas2);
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * RandomProjectionIndex.java
+ * Approximate spatial index for high dimensional data, based on locality
+ * sensitive hashing with random projections (E2LSH). The grid of
+ * IndexedDataset can only index a few coordinates, so in high dimensions it
+ * returns very large candidate lists.
+ * Coordinates are scaled by 1/sigma, so Mahalanobis distances become plain
+ * Euclidean distances. Each hash table projects the points on a few random
+ * Gaussian directions and quantizes the projections in buckets of fixed
+ * width; the candidates of a query are the points sharing its bucket in any
+ * table, which are then filtered by their exact distance.
+ * Some points inside the radius may be missed. The number of tables is
+ * derived from the recall target for points at the design radius (points
+ * closer than that are found with a higher probability), and the recall
+ * can be measured against an exact index with measureRecall.
+ * Queries only return points inside the radius, sorted by position in the
+ * data list.
+ * As in KdTreeIndex, the scaled coordinates can be stored in single precision
+ * (by default, when the data is a single precision PointStore).
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.special.Erf;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.util.Console;
+
+public class RandomProjectionIndex<T extends DatasetPoint> implements SpatialIndex<T> {
+
+	protected List<T> data;
+	protected PointStore store;
+	protected double[] sigmas;
+	protected int dim;
+
+	protected double designRadius = 8;
+	protected double recallTarget = 0.9;
+	protected int projectionsPerTable = 4;
+	protected double bucketWidthFactor = 4;
+	protected long seed = 0;
+	protected boolean singlePrecision;
+
+	protected volatile boolean indexed = false;
+	protected double[] coords;
+	protected float[] floatCoords;
+	protected int nTables;
+	protected double bucketWidth;
+	protected double[][] projections;
+	protected double[][] shifts;
+	protected long[][] bucketKeys;
+	protected int[][] bucketStarts;
+	protected int[][] bucketPoints;
+
+	protected final ThreadLocal<QueryContext> contexts = ThreadLocal.withInitial(QueryContext::new);
+	protected final ThreadLocal<ArrayList<T>> results = ThreadLocal.withInitial(ArrayList::new);
+
+	public RandomProjectionIndex(List<T> data, double[] sigmas) {
+		this.data = data;
+		this.store = PointStore.of(data);
+		this.sigmas = sigmas;
+		this.dim = sigmas.length;
+		this.singlePrecision = store != null && store.isSinglePrecision();
+	}
+
+	// Fluid style API to set the parameters, before indexing
+
+	public RandomProjectionIndex<T> withDesignRadius(double designRadius) {
+		this.designRadius = designRadius;
+		return this;
+	}
+
+	public RandomProjectionIndex<T> withRecallTarget(double recallTarget) {
+		this.recallTarget = recallTarget;
+		return this;
+	}
+
+	public RandomProjectionIndex<T> withProjectionsPerTable(int projectionsPerTable) {
+		this.projectionsPerTable = projectionsPerTable;
+		return this;
+	}
+
+	public RandomProjectionIndex<T> withBucketWidthFactor(double bucketWidthFactor) {
+		this.bucketWidthFactor = bucketWidthFactor;
+		return this;
+	}
+
+	public RandomProjectionIndex<T> withSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	public RandomProjectionIndex<T> withSinglePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+		return this;
+	}
+
+	public int getNTables() {
+		return nTables;
+	}
+
+	@Override
+	public double[] getSigmas() {
+		return sigmas;
+	}
+
+	@Override
+	public List<T> getAll() {
+		return data;
+	}
+
+	@Override
+	public void indexData() {
+		indexData(false);
+	}
+
+	@Override
+	public synchronized void indexData(boolean parallel) {
+
+		int n = data.size();
+		bucketWidth = bucketWidthFactor * designRadius;
+
+		// Probability that two points at the design radius share a bucket in
+		// one projection, in all the projections of a table, and number of
+		// tables needed to find them with the target probability
+		double c = bucketWidth / designRadius;
+		double p1 = 1 - 2 * normalCdf(-c) - 2 / (Math.sqrt(2 * Math.PI) * c) * (1 - Math.exp(-c * c / 2));
+		double pTable = Math.pow(p1, projectionsPerTable);
+		nTables = (int) Math.max(1, Math.ceil(Math.log(1 - recallTarget) / Math.log(1 - pTable)));
+
+		Random random = new Random(seed);
+		projections = new double[nTables][projectionsPerTable * dim];
+		shifts = new double[nTables][projectionsPerTable];
+		for (int t = 0; t < nTables; t++) {
+			for (int k = 0; k < projectionsPerTable * dim; k++) {
+				projections[t][k] = random.nextGaussian();
+			}
+			for (int k = 0; k < projectionsPerTable; k++) {
+				shifts[t][k] = random.nextDouble() * bucketWidth;
+			}
+		}
+
+		coords = new double[n * dim];
+		range(n, parallel).forEach(i -> {
+			if (store != null) {
+				for (int j = 0; j < dim; j++) {
+					coords[i * dim + j] = store.get(i, j) / sigmas[j];
+				}
+			} else {
+				double[] coordinates = data.get(i).getCoordinates();
+				for (int j = 0; j < dim; j++) {
+					coords[i * dim + j] = coordinates[j] / sigmas[j];
+				}
+			}
+			if (singlePrecision) {
+				for (int j = 0; j < dim; j++) {
+					coords[i * dim + j] = (float) coords[i * dim + j];
+				}
+			}
+		});
+
+		// Each table is stored like the flat grid: sorted distinct keys, and
+		// the points of each bucket contiguous, with an offset table
+		bucketKeys = new long[nTables][];
+		bucketStarts = new int[nTables][];
+		bucketPoints = new int[nTables][];
+		for (int t = 0; t < nTables; t++) {
+			final int table = t;
+			long[] keys = new long[n];
+			range(n, parallel).forEach(i -> keys[i] = getKey(table, coords, i * dim));
+
+			long[] sortedKeys = Arrays.copyOf(keys, n);
+			if (parallel) {
+				Arrays.parallelSort(sortedKeys);
+			} else {
+				Arrays.sort(sortedKeys);
+			}
+			int nBuckets = 0;
+			for (int i = 0; i < n; i++) {
+				if (i == 0 || sortedKeys[i] != sortedKeys[i - 1]) {
+					sortedKeys[nBuckets++] = sortedKeys[i];
+				}
+			}
+			long[] tableKeys = Arrays.copyOf(sortedKeys, nBuckets);
+
+			int[] bucketOfPoint = new int[n];
+			range(n, parallel).forEach(i -> bucketOfPoint[i] = Arrays.binarySearch(tableKeys, keys[i]));
+			int[] starts = new int[nBuckets + 1];
+			for (int i = 0; i < n; i++) {
+				starts[bucketOfPoint[i] + 1]++;
+			}
+			for (int b = 0; b < nBuckets; b++) {
+				starts[b + 1] += starts[b];
+			}
+			int[] next = Arrays.copyOf(starts, nBuckets);
+			int[] points = new int[n];
+			for (int i = 0; i < n; i++) {
+				points[next[bucketOfPoint[i]]++] = i;
+			}
+
+			bucketKeys[t] = tableKeys;
+			bucketStarts[t] = starts;
+			bucketPoints[t] = points;
+		}
+
+		// tables are hashed from the rounded coordinates, that are only kept as floats
+		floatCoords = null;
+		if (singlePrecision) {
+			floatCoords = new float[n * dim];
+			range(n, parallel).forEach(i -> {
+				for (int j = 0; j < dim; j++) {
+					floatCoords[i * dim + j] = (float) coords[i * dim + j];
+				}
+			});
+			coords = null;
+		}
+
+		indexed = true;
+
+		Console.log("Random projection index built with " + nTables + " tables of " + projectionsPerTable
+				+ " projections, bucket width " + bucketWidth + " sigmas");
+	}
+
+	protected void ensureIndexed() {
+		if (!indexed) {
+			synchronized (this) {
+				if (!indexed) {
+					indexData();
+				}
+			}
+		}
+	}
+
+	protected static IntStream range(int n, boolean parallel) {
+		IntStream range = IntStream.range(0, n);
+		return parallel ? range.parallel() : range;
+	}
+
+	protected static double normalCdf(double x) {
+		return 0.5 * (1 + Erf.erf(x / Math.sqrt(2)));
+	}
+
+	/**
+	 * Hash of the buckets of a (scaled) point in all the projections of a table.
+	 */
+	protected long getKey(int table, double[] values, int offset) {
+		double[] projection = projections[table];
+		long key = 17;
+		for (int k = 0; k < projectionsPerTable; k++) {
+			double dot = shifts[table][k];
+			int base = k * dim;
+			for (int j = 0; j < dim; j++) {
+				dot += projection[base + j] * values[offset + j];
+			}
+			key = key * 0x9E3779B97F4A7C15L + (long) Math.floor(dot / bucketWidth);
+		}
+		return key;
+	}
+
+	@Override
+	public List<T> getNeighborhood(double[] coordinates, double radiusInSigmas) {
+		if (radiusInSigmas < 0) {
+			return getAll();
+		} else {
+			List<T> result = results.get();
+			getNeighborhood(coordinates, radiusInSigmas, result);
+			return result;
+		}
+	}
+
+	@Override
+	public void getNeighborhood(double[] coordinates, double radiusInSigmas, List<T> result) {
+		result.clear();
+		if (radiusInSigmas < 0) {
+			result.addAll(getAll());
+		} else {
+			visitNeighborhood(coordinates, radiusInSigmas, result::add);
+		}
+	}
+
+	@Override
+	public void visitNeighborhood(double[] coordinates, double radiusInSigmas,
+			NeighborhoodVisitor<? super T> visitor) {
+
+		if (radiusInSigmas < 0) {
+			for (T point : getAll()) {
+				if (!visitor.visit(point)) {
+					break;
+				}
+			}
+		} else {
+			visitNeighborhoodRows(coordinates, radiusInSigmas, row -> visitor.visit(data.get(row)));
+		}
+	}
+
+	@Override
+	public void visitNeighborhoodRows(double[] coordinates, double radiusInSigmas, RowVisitor visitor) {
+
+		if (radiusInSigmas < 0) {
+			for (int row = 0; row < data.size(); row++) {
+				if (!visitor.visit(row)) {
+					break;
+				}
+			}
+			return;
+		}
+
+		ensureIndexed();
+		QueryContext context = contexts.get();
+		double[] query = context.getQuery(dim);
+		for (int j = 0; j < dim; j++) {
+			query[j] = coordinates[j] / sigmas[j];
+		}
+
+		// Candidates from all the tables, without duplicates
+		int nCandidates = 0;
+		for (int t = 0; t < nTables; t++) {
+			int bucket = Arrays.binarySearch(bucketKeys[t], getKey(t, query, 0));
+			if (bucket >= 0) {
+				int start = bucketStarts[t][bucket];
+				int end = bucketStarts[t][bucket + 1];
+				int[] candidates = context.getCandidates(nCandidates + end - start);
+				System.arraycopy(bucketPoints[t], start, candidates, nCandidates, end - start);
+				nCandidates += end - start;
+			}
+		}
+		int[] candidates = context.getCandidates(nCandidates);
+		Arrays.sort(candidates, 0, nCandidates);
+
+		double radius2 = radiusInSigmas * radiusInSigmas;
+		for (int c = 0; c < nCandidates; c++) {
+			int i = candidates[c];
+			if (c > 0 && i == candidates[c - 1]) {
+				continue;
+			}
+			if (distance2(i, query) <= radius2 && !visitor.visit(i)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Fraction of the points inside the radius of each query (according to the
+	 * exact index) that are also returned by this index. Points are matched by
+	 * row, so the exact index must be built over the same data (a PointStore
+	 * view creates a new point on every get).
+	 */
+	public double measureRecall(SpatialIndex<T> exact, List<? extends Point> queries, double radiusInSigmas) {
+
+		ensureIndexed();
+		double radius2 = radiusInSigmas * radiusInSigmas;
+		double[] scaled = new double[dim];
+		BitSet returned = new BitSet(data.size());
+		long[] counts = new long[2]; // expected, found
+		for (Point query : queries) {
+			double[] coordinates = query.getCoordinates();
+			for (int j = 0; j < dim; j++) {
+				scaled[j] = coordinates[j] / sigmas[j];
+			}
+			returned.clear();
+			visitNeighborhoodRows(coordinates, radiusInSigmas, row -> {
+				returned.set(row);
+				return true;
+			});
+			exact.visitNeighborhoodRows(coordinates, radiusInSigmas, row -> {
+				if (distance2(row, scaled) <= radius2) {
+					counts[0]++;
+					if (returned.get(row)) {
+						counts[1]++;
+					}
+				}
+				return true;
+			});
+		}
+		return (counts[0] > 0) ? (1.0 * counts[1]) / counts[0] : 1.0;
+	}
+
+	/**
+	 * Recall measured against a KD-tree over the same data, using a sample of
+	 * the data points as queries.
+	 */
+	public double measureRecall(int nQueries, double radiusInSigmas) {
+		List<T> queries = new ArrayList<>(nQueries);
+		int step = Math.max(1, data.size() / Math.max(1, nQueries));
+		for (int i = 0; i < data.size() && queries.size() < nQueries; i += step) {
+			queries.add(data.get(i));
+		}
+		boolean logEnabled = Console.isEnabled();
+		Console.setEnabled(false);
+		KdTreeIndex<T> exact = new KdTreeIndex<>(data, sigmas);
+		exact.indexData();
+		Console.setEnabled(logEnabled);
+		return measureRecall(exact, queries, radiusInSigmas);
+	}
+
+	/**
+	 * Squared distance from the scaled query to the point at the given row.
+	 */
+	protected double distance2(int row, double[] query) {
+		int offset = row * dim;
+		double distance2 = 0;
+		if (floatCoords != null) {
+			for (int j = 0; j < dim; j++) {
+				double diff = floatCoords[offset + j] - query[j];
+				distance2 += diff * diff;
+			}
+		} else {
+			for (int j = 0; j < dim; j++) {
+				double diff = coords[offset + j] - query[j];
+				distance2 += diff * diff;
+			}
+		}
+		return distance2;
+	}
+
+	protected double distance2(double[] x, double[] u) {
+		double accum = 0;
+		for (int j = 0; j < dim; j++) {
+			double diff = (x[j] - u[j]) / sigmas[j];
+			accum += diff * diff;
+		}
+		return accum;
+	}
+
+	/**
+	 * Scratch buffers for the queries of a single thread.
+	 */
+	protected static class QueryContext {
+		private double[] query = new double[0];
+		private int[] candidates = new int[1024];
+
+		double[] getQuery(int dim) {
+			if (query.length < dim) {
+				query = new double[dim];
+			}
+			return query;
+		}
+
+		int[] getCandidates(int size) {
+			if (candidates.length < size) {
+				candidates = Arrays.copyOf(candidates, Math.max(size, 2 * candidates.length));
+			}
+			return candidates;
+		}
+	}
+}
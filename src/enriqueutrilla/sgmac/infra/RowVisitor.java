@@ -0,0 +1,28 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * RowVisitor.java
+ * Callback receiving the positions in the data list (rows of a PointStore)
+ * of the points of a neighborhood, so that callers reading the coordinates
+ * from a columnar store do not need the point objects. Returning false stops
+ * the query.
+ */
+
+public interface RowVisitor {
+
+	public boolean visit(int row);
+}
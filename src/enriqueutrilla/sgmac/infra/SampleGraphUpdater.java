@@ -0,0 +1,227 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SampleGraphUpdater.java
+ * Mode finder of SgMac that follows the flow of the samples instead of
+ * stepping each path like a SampledGradientUpdater. Since the gradients of the samples are fixed, the
+ * successor of each sample is the sample closest to the position reached by
+ * its gradient step (several steps while the closest sample is still the
+ * same). A sample is terminal when it is close enough to a local maximum or
+ * its step is negligible, like in SampledGradientUpdater.
+ * The terminal sample of every sample is then resolved by pointer jumping:
+ * in each round every sample jumps to the successor of its successor, so
+ * log2(n) rounds are enough. Samples flowing into a cycle are not resolved,
+ * and their paths do not converge.
+ * Finding the mode of a point is then a single lookup of its closest sample.
+ * The successors and rounds are calculated in parallel; the result does
+ * not depend on the number of threads.
+ */
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import enriqueutrilla.sgmac.dm.PathPoint;
+import enriqueutrilla.sgmac.dm.Point;
+import enriqueutrilla.sgmac.dm.SampledPdfPoint;
+import enriqueutrilla.sgmac.util.Distances;
+import enriqueutrilla.sgmac.util.Parallel;
+
+public class SampleGraphUpdater implements ModeFinder {
+
+	protected final SampledGradientUpdater updater;
+	protected final int maxIterations;
+	protected final ConvergenceStats convergenceStats = new ConvergenceStats();
+	protected int parallelism = 1;
+
+	protected List<SampledPdfPoint> samples;
+	protected Map<SampledPdfPoint, Integer> rows;
+	// sample each sample leads to (itself if terminal), and the iterations
+	// of the path between them
+	protected int[] successors;
+	protected long[] iterations;
+	// position of the mode of terminal samples (null if the path does not converge)
+	protected double[][] modes;
+	protected int rounds = 0;
+	protected int unresolved = 0;
+
+	public SampleGraphUpdater(SampledGradientUpdater updater) {
+		this.updater = updater;
+		this.maxIterations = updater.getMaxIterations();
+	}
+
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	// Number of threads building the graph (0 or less for all the processors)
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Calculates the successor of every sample of the updater and resolves
+	 * the terminal sample of each one.
+	 */
+	public void build() {
+
+		samples = updater.pdfSamplesIdx.getAll();
+		int n = samples.size();
+		rows = new IdentityHashMap<>(n);
+		for (int i = 0; i < n; i++) {
+			rows.put(samples.get(i), i);
+		}
+		successors = new int[n];
+		iterations = new long[n];
+		modes = new double[n][];
+
+		try (Parallel workers = new Parallel(parallelism)) {
+			workers.forEach(0, n, this::link);
+
+			// every round reads one pair of arrays and writes the other one
+			int[] nextSuccessors = new int[n];
+			long[] nextIterations = new long[n];
+			rounds = 0;
+			boolean changed = true;
+			for (long jump = 1; jump < n && changed; jump *= 2) {
+				int[] current = successors;
+				long[] currentIterations = iterations;
+				int[] next = nextSuccessors;
+				long[] nextIts = nextIterations;
+				workers.forEach(0, n, i -> {
+					int successor = current[i];
+					if (current[successor] == successor) {
+						// already pointing to a terminal sample
+						next[i] = successor;
+						nextIts[i] = currentIterations[i];
+					} else {
+						next[i] = current[successor];
+						nextIts[i] = currentIterations[i] + currentIterations[successor];
+					}
+				});
+				changed = !Arrays.equals(current, next);
+				nextSuccessors = current;
+				nextIterations = currentIterations;
+				successors = next;
+				iterations = nextIts;
+				rounds++;
+			}
+		}
+
+		unresolved = 0;
+		for (int i = 0; i < n; i++) {
+			if (getMode(i) == null) {
+				unresolved++;
+			}
+		}
+	}
+
+	// Successor of sample i, following the same rules as SampledGradientUpdater.update
+	protected void link(int i) {
+
+		SampledPdfPoint sample = samples.get(i);
+		double[] position = sample.getCoordinates();
+		successors[i] = i;
+
+		SampledPdfPoint maximum = updater.getCloseLocalMaximum(position);
+		if (maximum != null) {
+			modes[i] = maximum.getCoordinates();
+			return;
+		}
+
+		double[] increment = new double[position.length];
+		for (int j = 0; j < increment.length; j++) {
+			increment[j] = updater.stepFactor * sample.getPdfGradient(j);
+		}
+		position = position.clone();
+		boolean negligible = Distances.norm(increment, updater.sigmas2) < 0.001;
+		for (long k = 1; k < getMaxIterations(); k++) {
+			for (int j = 0; j < increment.length; j++) {
+				position[j] += increment[j];
+			}
+			iterations[i] = k;
+			if (negligible) {
+				modes[i] = position;
+				return;
+			}
+			maximum = updater.getCloseLocalMaximum(position);
+			if (maximum != null) {
+				modes[i] = maximum.getCoordinates();
+				iterations[i] = k + 1;
+				return;
+			}
+			SampledPdfPoint closest = updater.getClosestSample(position);
+			if (closest != sample) {
+				successors[i] = rows.get(closest);
+				return;
+			}
+		}
+	}
+
+	// Mode where the path of sample i converges, or null
+	protected double[] getMode(int i) {
+		int root = successors[i];
+		if (successors[root] != root || modes[root] == null) {
+			return null;
+		}
+		return (getIterations(i) < getMaxIterations()) ? modes[root] : null;
+	}
+
+	// Iterations of the path of sample i up to its mode
+	protected long getIterations(int i) {
+		int root = successors[i];
+		return (root == i) ? iterations[i] : iterations[i] + iterations[root];
+	}
+
+	@Override
+	public PathPoint findMode(Point initial) {
+
+		PathPoint current = new PathPoint(initial);
+		int row = rows.get(updater.getClosestSample(current));
+		double[] mode = getMode(row);
+		if (mode != null) {
+			current.setCoordinates(mode);
+			current.setConverged(true);
+			convergenceStats.add((int) Math.min(Integer.MAX_VALUE - 1, getIterations(row) + 1), maxIterations);
+		}
+		return current;
+	}
+
+	public int getRounds() {
+		return rounds;
+	}
+
+	public int getUnresolved() {
+		return unresolved;
+	}
+
+	public String getStats() {
+		return "Sample graph: " + samples.size() + " samples, " + unresolved + " not converging, "
+				+ rounds + " pointer jumping rounds";
+	}
+
+	@Override
+	public String getConvergenceStats() {
+		String stats = convergenceStats.getSummary();
+		return (stats == null) ? getStats() : stats + "\n" + getStats();
+	}
+}
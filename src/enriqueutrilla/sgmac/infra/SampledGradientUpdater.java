@@ -17,6 +17,12 @@ package enriqueutrilla.sgmac.infra;
  * 
  * SampledGradientUpdater.java
  * Path updater of the SgMac algorithm.
+ * If all the variances are 1 (whitened coordinates), distances are plain
+ * Euclidean distances.
+ * The closest sample is found with the nearest neighbor query of the index.
+ * With grid indexes, the neighborhoods of the last local maxima query are
+ * reused while the path stays in the same cell (see NeighborhoodCache),
+ * unless disabled.
  */
 
 import java.util.ArrayList;
@@ -28,21 +34,24 @@ import enriqueutrilla.sgmac.util.Distances;
 
 public class SampledGradientUpdater extends PathUpdater {
 
-	protected IndexedDataset<SampledPdfPoint> pdfSamplesIdx;
-	protected IndexedDataset<SampledPdfPoint> localMaximaIdx;
+	protected SpatialIndex<SampledPdfPoint> pdfSamplesIdx;
+	protected SpatialIndex<SampledPdfPoint> localMaximaIdx;
 	protected double[] sigmas;
 	protected double[] sigmas2;
 	protected double stepFactor;
 	protected double[] step;
 	protected double distanceThreshold;
+	protected boolean unit;
+	protected boolean reuseNeighborhoods = true;
+	protected NeighborhoodCache<SampledPdfPoint> localMaximaNeighborhoods;
 
 	protected List<double[]> lastPoints = new ArrayList<>();
 	protected int index = 0;
 	protected int maxPoints = 5;
 	protected double[] lastAvgPosition;
 
-	public SampledGradientUpdater(IndexedDataset<SampledPdfPoint> pdfSamplesIdx,
-			IndexedDataset<SampledPdfPoint> localMaximaIdx, double[] sigmas2, double stepFactor,
+	public SampledGradientUpdater(SpatialIndex<SampledPdfPoint> pdfSamplesIdx,
+			SpatialIndex<SampledPdfPoint> localMaximaIdx, double[] sigmas2, double stepFactor,
 			double distanceThreshold) {
 		this.pdfSamplesIdx = pdfSamplesIdx;
 		this.localMaximaIdx = localMaximaIdx;
@@ -52,8 +61,38 @@ public class SampledGradientUpdater extends PathUpdater {
 			this.sigmas[i] = Math.sqrt(sigmas2[i]);
 		}
 
+		this.unit = Distances.isUnit(sigmas2);
 		this.stepFactor = stepFactor;// *sigmaNorm;
 		this.distanceThreshold = distanceThreshold;
+		setReuseNeighborhoods(true);
+	}
+
+	public boolean isReuseNeighborhoods() {
+		return reuseNeighborhoods;
+	}
+
+	// Keep the neighborhoods of the last queries while the path stays in the
+	// same cell of a grid index (the results are the same either way)
+	public void setReuseNeighborhoods(boolean reuseNeighborhoods) {
+		this.reuseNeighborhoods = reuseNeighborhoods;
+		this.localMaximaNeighborhoods = new NeighborhoodCache<>(localMaximaIdx, reuseNeighborhoods);
+	}
+
+	public long getNeighborhoodQueries() {
+		return localMaximaNeighborhoods.getQueries();
+	}
+
+	public long getNeighborhoodsReused() {
+		return localMaximaNeighborhoods.getReused();
+	}
+
+	@Override
+	public String getConvergenceStats() {
+		String stats = super.getConvergenceStats();
+		if (stats != null && localMaximaNeighborhoods.isEnabled()) {
+			stats += "\n" + getNeighborhoodReuseStats(getNeighborhoodQueries(), getNeighborhoodsReused());
+		}
+		return stats;
 	}
 
 	@Override
@@ -61,14 +100,7 @@ public class SampledGradientUpdater extends PathUpdater {
 		// Estimate gradient in <current>
 
 		// Check 1st convergence condition (being close enough to a known local maximum)
-		SampledPdfPoint closestSample = null;
-		for (SampledPdfPoint pdfSample : localMaximaIdx.getNeighborhood(current.getCoordinates(), distanceThreshold)) {
-			double distance = Distances.mahalanobis(current, pdfSample, sigmas2);
-			if (distance < distanceThreshold) {
-				closestSample = pdfSample;
-				break;
-			}
-		}
+		SampledPdfPoint closestSample = getCloseLocalMaximum(current.getCoordinates());
 
 		if (closestSample != null) {
 			current.setCoordinates(closestSample.getCoordinates());
@@ -78,7 +110,7 @@ public class SampledGradientUpdater extends PathUpdater {
 
 			closestSample = getClosestSample(current);
 			for (int i = 0; i < increment.length; i++) {
-				increment[i] = stepFactor * closestSample.getPdfGradient()[i];
+				increment[i] = stepFactor * closestSample.getPdfGradient(i);
 			}
 
 			current.add(increment);
@@ -90,33 +122,30 @@ public class SampledGradientUpdater extends PathUpdater {
 		}
 	}
 
-	protected SampledPdfPoint getClosestSample(PathPoint current) {
-
-		double minDistance = Double.MAX_VALUE;
-		SampledPdfPoint closestSample = null;
-
-		// Try first looking for data at 3 sigmas, then data at 7 sigmas, then all
-		double[] radius = new double[] { 3.0, 7.0, -1 };
-		int i = 0;
+	// First local maximum found within the distance threshold of x, if any
+	protected SampledPdfPoint getCloseLocalMaximum(double[] x) {
+		for (SampledPdfPoint pdfSample : localMaximaNeighborhoods.getNeighborhood(x, distanceThreshold)) {
+			if (distance(x, pdfSample.getCoordinates()) < distanceThreshold) {
+				return pdfSample;
+			}
+		}
+		return null;
+	}
 
-		while (closestSample == null && i < radius.length) {
-			for (SampledPdfPoint pdfSample : pdfSamplesIdx.getNeighborhood(current.getCoordinates(), radius[i])) {
+	protected SampledPdfPoint getClosestSample(PathPoint current) {
+		return getClosestSample(current.getCoordinates());
+	}
 
-				double distance = Distances.mahalanobis(current, pdfSample, sigmas2);
-				if (distance < minDistance) {
-					minDistance = distance;
-					closestSample = pdfSample;
-				}
+	protected SampledPdfPoint getClosestSample(double[] x) {
+		return pdfSamplesIdx.getNearest(x, false);
+	}
 
-				// if minDistance = 0 there is no need to check any other
-				if (minDistance == 0) {
-					break;
-				}
-			}
-			i++;
+	protected double distance(double[] x, double[] u) {
+		if (unit) {
+			return Math.sqrt(Distances.squaredEuclidean(x, u));
+		} else {
+			return Distances.mahalanobis(x, u, sigmas2);
 		}
-
-		return closestSample;
 	}
 
 }
@@ -0,0 +1,94 @@
+package enriqueutrilla.sgmac.infra;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SpatialIndex.java
+ * Interface of the indexes that provide the points of a dataset that are
+ * closer than a given radius (Mahalanobis distance, in sigmas) to a point.
+ * Implementations must return at least all the points inside the radius,
+ * but may return extra points further away (e.g. whole cells of a grid).
+ * A negative radius returns the whole dataset.
+ * Once indexed, implementations can be queried concurrently.
+ * Points can also be visited by row (position in getAll()), which lets
+ * callers read the coordinates from a PointStore instead of point objects.
+ * The nearest neighbor of a point is found by querying growing radii, unless
+ * the implementation provides a better search.
+ */
+
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+
+public interface SpatialIndex<T extends DatasetPoint> {
+
+	public List<T> getAll();
+
+	public void indexData();
+
+	/**
+	 * Builds the index, optionally using several threads. Queries must return
+	 * the same results with both build paths.
+	 */
+	public void indexData(boolean parallel);
+
+	/**
+	 * Returns the neighborhood in a list owned by the calling thread, that is
+	 * overwritten by its next query to this index.
+	 */
+	public List<T> getNeighborhood(double[] coordinates, double radiusInSigmas);
+
+	/**
+	 * Replaces the contents of the given list with the neighborhood.
+	 */
+	public void getNeighborhood(double[] coordinates, double radiusInSigmas, List<T> result);
+
+	/**
+	 * Calls the visitor for each point of the neighborhood, until it returns false.
+	 */
+	public void visitNeighborhood(double[] coordinates, double radiusInSigmas, NeighborhoodVisitor<? super T> visitor);
+
+	/**
+	 * Calls the visitor with the row of each point of the neighborhood, in the
+	 * same order as visitNeighborhood, until it returns false.
+	 */
+	public void visitNeighborhoodRows(double[] coordinates, double radiusInSigmas, RowVisitor visitor);
+
+	/**
+	 * Sigmas of the Mahalanobis distance used by the index.
+	 */
+	public double[] getSigmas();
+
+	/**
+	 * Returns the point closest to the coordinates, or null if there is none.
+	 * If skipCoincident, points at distance 0 are ignored.
+	 */
+	public default T getNearest(double[] coordinates, boolean skipCoincident) {
+
+		NearestSearch<T> search = new NearestSearch<>(getAll(), coordinates, getSigmas(), skipCoincident);
+		int size = getAll().size();
+		// every point inside the radius is visited, so the search can stop as
+		// soon as the nearest one found is inside it
+		for (double radius = 1; radius <= 64; radius *= 2) {
+			search.resetVisited();
+			visitNeighborhoodRows(coordinates, radius, search);
+			if (search.getDistance() <= radius || search.getVisited() >= size) {
+				return search.getNearest();
+			}
+		}
+		visitNeighborhoodRows(coordinates, -1, search);
+		return search.getNearest();
+	}
+}
@@ -38,6 +38,32 @@ public class Distances {
 		return FastMath.sqrt(accum);
 	}
 	
+	/**
+	 * Squared Euclidean distance, that is the squared Mahalanobis distance in
+	 * a whitened space (unit sigmas).
+	 */
+	public static double squaredEuclidean(double[] x, double[] u) {
+		double accum =0;
+		for(int i=0; i<x.length; i++) {
+			double diff = x[i] - u[i];
+			accum += diff * diff;
+		}
+		return accum;
+	}
+	
+	/**
+	 * True if all the variances are 1, i.e. the coordinates are whitened and
+	 * Mahalanobis distances are plain Euclidean distances.
+	 */
+	public static boolean isUnit(double sigma2[]) {
+		for(int i=0; i<sigma2.length; i++) {
+			if (sigma2[i] != 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	public static double norm(double[] x, double sigma2[]) {
 		double accum =0;
 		for(int i=0; i<x.length; i++) {
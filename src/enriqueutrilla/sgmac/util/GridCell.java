@@ -0,0 +1,76 @@
+package enriqueutrilla.sgmac.util;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * GridCell.java
+ * Key of a cell of a regular grid: the index of the cell along each
+ * coordinate, floor(x / cellSize). Usable as a key of hash maps.
+ */
+
+import java.util.Arrays;
+
+public final class GridCell {
+
+	private final int[] indexes;
+	private final int hash;
+
+	public GridCell(int[] indexes) {
+		this.indexes = indexes;
+		this.hash = Arrays.hashCode(indexes);
+	}
+
+	/**
+	 * Cell containing the given coordinates, for the given cell size along
+	 * each coordinate.
+	 */
+	public static GridCell of(double[] coordinates, double[] cellSizes) {
+		int[] indexes = new int[coordinates.length];
+		for (int j = 0; j < coordinates.length; j++) {
+			indexes[j] = (int) Math.floor(coordinates[j] / cellSizes[j]);
+		}
+		return new GridCell(indexes);
+	}
+
+	public int dim() {
+		return indexes.length;
+	}
+
+	public int getIndex(int coordIndex) {
+		return indexes[coordIndex];
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof GridCell)) {
+			return false;
+		}
+		GridCell other = (GridCell) obj;
+		return hash == other.hash && Arrays.equals(indexes, other.indexes);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(indexes);
+	}
+}
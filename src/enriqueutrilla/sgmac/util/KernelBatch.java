@@ -0,0 +1,186 @@
+package enriqueutrilla.sgmac.util;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * KernelBatch.java
+ * Batch evaluation of the kernels of a neighborhood at a query point,
+ * returning the sum of the kernel values and the weighted mean of the kernel
+ * centers (the EM / mean shift update), for a given KernelProfile.
+ * The coordinates of the kernels are gathered into a contiguous block stored
+ * by coordinate (all the values of coordinate 0, then coordinate 1, ...), so
+ * that every step is a simple loop over the kernels that the JIT compiler
+ * can unroll and vectorize: squared distances, exponentials, normalization
+ * and weighted sum. Only the loop that turns distances into kernel values
+ * depends on the profile, so it is a single call per batch.
+ * A batch is not thread safe, it is meant to be reused by a single thread.
+ */
+
+import java.util.Arrays;
+
+import enriqueutrilla.sgmac.dm.PointStore;
+
+public class KernelBatch {
+
+	protected final int dim;
+	protected final KernelProfile profile;
+	protected int capacity;
+	protected double[] coordinates;
+	protected double[] weights;
+	protected int size = 0;
+
+	public KernelBatch(int dim) {
+		this(dim, KernelProfile.gaussian());
+	}
+
+	public KernelBatch(int dim, KernelProfile profile) {
+		this(dim, profile, 256);
+	}
+
+	public KernelBatch(int dim, KernelProfile profile, int capacity) {
+		this.dim = dim;
+		this.profile = profile;
+		this.capacity = Math.max(1, capacity);
+		this.coordinates = new double[this.capacity * dim];
+		this.weights = new double[this.capacity];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getDim() {
+		return dim;
+	}
+
+	public KernelProfile getProfile() {
+		return profile;
+	}
+
+	public void add(double[] kernel) {
+		ensureCapacity();
+		for (int j = 0; j < dim; j++) {
+			coordinates[j * capacity + size] = kernel[j];
+		}
+		size++;
+	}
+
+	/**
+	 * Adds the kernel whose coordinates start at the given offset of a block
+	 * of consecutive kernels.
+	 */
+	public void add(double[] block, int offset) {
+		ensureCapacity();
+		for (int j = 0; j < dim; j++) {
+			coordinates[j * capacity + size] = block[offset + j];
+		}
+		size++;
+	}
+
+	public void add(PointStore store, int row) {
+		ensureCapacity();
+		for (int j = 0; j < dim; j++) {
+			coordinates[j * capacity + size] = store.get(row, j);
+		}
+		size++;
+	}
+
+	/**
+	 * Mean shift weights of the last evaluation, normalized by their sum.
+	 */
+	public double[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * Evaluates the kernels at x, writes the weighted mean of the kernels in
+	 * mean and returns the sum of the kernel values. If no kernel has its
+	 * support at x the mean is x itself. Each coordinate of the
+	 * squared Mahalanobis distance is multiplied by invSigma2 (1/sigma^2);
+	 * if invSigma2 is null the coordinates are assumed to be whitened, and
+	 * plain squared Euclidean distances are used.
+	 */
+	public double evaluate(double[] x, double[] invSigma2, double[] mean) {
+
+		// squared Mahalanobis distances, one coordinate at a time
+		Arrays.fill(weights, 0, size, 0);
+		for (int j = 0; j < dim; j++) {
+			double xj = x[j];
+			int base = j * capacity;
+			if (invSigma2 == null) {
+				for (int i = 0; i < size; i++) {
+					double diff = xj - coordinates[base + i];
+					weights[i] += diff * diff;
+				}
+			} else {
+				double inv = invSigma2[j];
+				for (int i = 0; i < size; i++) {
+					double diff = xj - coordinates[base + i];
+					weights[i] += diff * diff * inv;
+				}
+			}
+		}
+
+		double sum = profile.apply(weights, size);
+		double weightSum = 0;
+		for (int i = 0; i < size; i++) {
+			weightSum += weights[i];
+		}
+		if (weightSum == 0) {
+			System.arraycopy(x, 0, mean, 0, dim);
+			return sum;
+		}
+
+		double inverseSum = 1 / weightSum;
+		for (int i = 0; i < size; i++) {
+			weights[i] *= inverseSum;
+		}
+
+		// four independent partial sums, so the additions do not wait for each other
+		int blocks = size & ~3;
+		for (int j = 0; j < dim; j++) {
+			int base = j * capacity;
+			double accum0 = 0, accum1 = 0, accum2 = 0, accum3 = 0;
+			for (int i = 0; i < blocks; i += 4) {
+				accum0 += weights[i] * coordinates[base + i];
+				accum1 += weights[i + 1] * coordinates[base + i + 1];
+				accum2 += weights[i + 2] * coordinates[base + i + 2];
+				accum3 += weights[i + 3] * coordinates[base + i + 3];
+			}
+			for (int i = blocks; i < size; i++) {
+				accum0 += weights[i] * coordinates[base + i];
+			}
+			mean[j] = (accum0 + accum1) + (accum2 + accum3);
+		}
+		return sum;
+	}
+
+	protected void ensureCapacity() {
+		if (size == capacity) {
+			int newCapacity = 2 * capacity;
+			double[] newCoordinates = new double[newCapacity * dim];
+			for (int j = 0; j < dim; j++) {
+				System.arraycopy(coordinates, j * capacity, newCoordinates, j * newCapacity, size);
+			}
+			coordinates = newCoordinates;
+			weights = Arrays.copyOf(weights, newCapacity);
+			capacity = newCapacity;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package enriqueutrilla.sgmac.util;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * KernelProfile.java
+ * Shape of the kernels used to estimate the PDF, as a function of the
+ * squared Mahalanobis distance to the kernel center, and the weights that
+ * each kernel gets in the mean shift (EM) update towards the modes.
+ * Every profile has a support radius (in sigmas): kernels further away
+ * contribute nothing, so neighborhood queries only need that radius.
+ * - gaussian: the original kernel of Gaussian.getUnnormalizedGaussian. It is
+ *   queried with the 8 sigmas neighborhood that was always used, and every
+ *   kernel returned by the index is evaluated, as before.
+ * - truncatedGaussian: the same kernel, cut where it falls below epsilon.
+ * - epanechnikov: 1 - (d/r)^2; the mean shift weights are uniform.
+ * - biweight: (1 - (d/r)^2)^2; the mean shift weights are 1 - (d/r)^2.
+ */
+
+import org.apache.commons.math3.util.FastMath;
+
+public abstract class KernelProfile {
+
+	protected final String name;
+	protected final double supportRadius;
+
+	protected KernelProfile(String name, double supportRadius) {
+		this.name = name;
+		this.supportRadius = supportRadius;
+	}
+
+	public static KernelProfile gaussian() {
+		return new Gaussian("gaussian", 8, false);
+	}
+
+	/**
+	 * Gaussian kernel set to 0 where its value is below epsilon.
+	 */
+	public static KernelProfile truncatedGaussian(double epsilon) {
+		return new Gaussian("truncated gaussian (epsilon " + epsilon + ")", -2 * FastMath.log(epsilon), true);
+	}
+
+	public static KernelProfile epanechnikov(double radiusInSigmas) {
+		return new Epanechnikov(radiusInSigmas);
+	}
+
+	public static KernelProfile biweight(double radiusInSigmas) {
+		return new Biweight(radiusInSigmas);
+	}
+
+	/**
+	 * Profile with the given name, as returned by getName (e.g. to restore a
+	 * saved model).
+	 */
+	public static KernelProfile forName(String name) {
+		String cut = " (cut at ";
+		if (name.endsWith(" sigmas)") && name.contains(cut)) {
+			return forName(name.substring(0, name.lastIndexOf(cut))).withCutoff();
+		} else if (name.equals("gaussian")) {
+			return gaussian();
+		} else if (name.startsWith("truncated gaussian (epsilon ")) {
+			return truncatedGaussian(parseParameter(name));
+		} else if (name.startsWith("epanechnikov (radius ")) {
+			return epanechnikov(parseParameter(name));
+		} else if (name.startsWith("biweight (radius ")) {
+			return biweight(parseParameter(name));
+		}
+		throw new IllegalArgumentException("Unknown kernel profile: " + name);
+	}
+
+	// Number between the last space and the closing parenthesis of a name
+	protected static double parseParameter(String name) {
+		if (!name.endsWith(")")) {
+			throw new IllegalArgumentException("Unknown kernel profile: " + name);
+		}
+		try {
+			return Double.parseDouble(name.substring(name.lastIndexOf(' ') + 1, name.length() - 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unknown kernel profile: " + name);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Distance (Mahalanobis, in sigmas) beyond which kernels are 0.
+	 */
+	public double getSupportRadius() {
+		return supportRadius;
+	}
+
+	/**
+	 * Profile that is exactly 0 beyond the support radius. Only the plain
+	 * Gaussian has to change: it evaluates any kernel it is given.
+	 */
+	public KernelProfile withCutoff() {
+		return this;
+	}
+
+	/**
+	 * Replaces the first size squared distances with the mean shift weights of
+	 * the kernels, and returns the sum of the kernel values (the unnormalized
+	 * PDF).
+	 */
+	public abstract double apply(double[] distances2, int size);
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	protected static class Gaussian extends KernelProfile {
+
+		protected final boolean truncated;
+
+		protected Gaussian(String name, double supportRadius, boolean truncated) {
+			super(name, supportRadius);
+			this.truncated = truncated;
+		}
+
+		@Override
+		public KernelProfile withCutoff() {
+			return truncated ? this : new Gaussian(name + " (cut at " + supportRadius + " sigmas)", supportRadius, true);
+		}
+
+		@Override
+		public double apply(double[] distances2, int size) {
+			double radius2 = truncated ? supportRadius * supportRadius : Double.POSITIVE_INFINITY;
+			double sum = 0;
+			for (int i = 0; i < size; i++) {
+				double value = (distances2[i] <= radius2) ? FastMath.exp(-0.5 * FastMath.sqrt(distances2[i])) : 0;
+				distances2[i] = value;
+				sum += value;
+			}
+			return sum;
+		}
+	}
+
+	protected static class Epanechnikov extends KernelProfile {
+
+		protected Epanechnikov(double supportRadius) {
+			super("epanechnikov (radius " + supportRadius + ")", supportRadius);
+		}
+
+		@Override
+		public double apply(double[] distances2, int size) {
+			double invRadius2 = 1 / (supportRadius * supportRadius);
+			double sum = 0;
+			for (int i = 0; i < size; i++) {
+				double u = distances2[i] * invRadius2;
+				if (u < 1) {
+					sum += 1 - u;
+					distances2[i] = 1;
+				} else {
+					distances2[i] = 0;
+				}
+			}
+			return sum;
+		}
+	}
+
+	protected static class Biweight extends KernelProfile {
+
+		protected Biweight(double supportRadius) {
+			super("biweight (radius " + supportRadius + ")", supportRadius);
+		}
+
+		@Override
+		public double apply(double[] distances2, int size) {
+			double invRadius2 = 1 / (supportRadius * supportRadius);
+			double sum = 0;
+			for (int i = 0; i < size; i++) {
+				double t = Math.max(0, 1 - distances2[i] * invRadius2);
+				sum += t * t;
+				distances2[i] = t;
+			}
+			return sum;
+		}
+	}
+}
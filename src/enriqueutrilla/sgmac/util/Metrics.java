@@ -0,0 +1,116 @@
+package enriqueutrilla.sgmac.util;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Metrics.java
+ * Named counters and timers that can be updated concurrently from several
+ * threads (each one is a LongAdder), used to report the work done and the
+ * time spent in each stage of the algorithms. Timers accumulate
+ * nanoseconds; the report keeps the order in which the metrics were first
+ * used.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+	protected final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	protected final Map<String, LongAdder> timers = new ConcurrentHashMap<>();
+	protected final Map<String, Integer> order = new ConcurrentHashMap<>();
+	protected final AtomicInteger sequence = new AtomicInteger();
+
+	public void increment(String counter) {
+		add(counter, 1);
+	}
+
+	public void add(String counter, long value) {
+		get(counters, counter).add(value);
+	}
+
+	public void addTime(String timer, long nanos) {
+		get(timers, timer).add(nanos);
+	}
+
+	/**
+	 * Runs the task and adds its elapsed time to the timer.
+	 */
+	public void time(String timer, Runnable task) {
+		long start = System.nanoTime();
+		try {
+			task.run();
+		} finally {
+			addTime(timer, System.nanoTime() - start);
+		}
+	}
+
+	public long getCount(String counter) {
+		LongAdder adder = counters.get(counter);
+		return (adder == null) ? 0 : adder.sum();
+	}
+
+	public long getTimeNanos(String timer) {
+		LongAdder adder = timers.get(timer);
+		return (adder == null) ? 0 : adder.sum();
+	}
+
+	public double getTimeMillis(String timer) {
+		return getTimeNanos(timer) / 1e6;
+	}
+
+	public void reset() {
+		counters.clear();
+		timers.clear();
+		order.clear();
+	}
+
+	/**
+	 * One line per metric: "name: count" or "name: time ms".
+	 */
+	public String report() {
+		StringBuilder result = new StringBuilder();
+		order.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEach(entry -> {
+			String name = entry.getKey();
+			if (result.length() > 0) {
+				result.append('\n');
+			}
+			if (timers.containsKey(name)) {
+				result.append(name).append(": ").append(String.format("%.1f", getTimeMillis(name))).append(" ms");
+			} else {
+				result.append(name).append(": ").append(getCount(name));
+			}
+		});
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return report();
+	}
+
+	protected LongAdder get(Map<String, LongAdder> metrics, String name) {
+		LongAdder adder = metrics.get(name);
+		if (adder == null) {
+			adder = metrics.computeIfAbsent(name, key -> {
+				order.putIfAbsent(key, sequence.getAndIncrement());
+				return new LongAdder();
+			});
+		}
+		return adder;
+	}
+}
@@ -0,0 +1,103 @@
+package enriqueutrilla.sgmac.util;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Parallel.java
+ * Minimal worker pool to run independent per-item tasks (one per point, one
+ * per sample...) over a range of indexes. With a parallelism of 1 the tasks
+ * simply run in a loop in the calling thread; otherwise the range is split
+ * recursively in a ForkJoinPool of its own, so the number of cores used does
+ * not depend on the common pool. Tasks must write their results to their
+ * own slots (e.g. an array indexed by the item), so the results do not
+ * depend on the order in which the items are processed.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+public class Parallel implements AutoCloseable {
+
+	protected final int parallelism;
+	protected final ForkJoinPool pool;
+
+	/**
+	 * Pool with the given number of threads; 0 or less uses all the
+	 * available processors.
+	 */
+	public Parallel(int parallelism) {
+		this.parallelism = resolve(parallelism);
+		this.pool = (this.parallelism > 1) ? new ForkJoinPool(this.parallelism) : null;
+	}
+
+	public static int resolve(int parallelism) {
+		return (parallelism > 0) ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Runs action for every index in [from, to), and returns when all of them
+	 * are done. An exception thrown by any of the tasks is rethrown.
+	 */
+	public void forEach(int from, int to, IntConsumer action) {
+		if (pool == null || to - from <= 1) {
+			for (int i = from; i < to; i++) {
+				action.accept(i);
+			}
+		} else {
+			// a few tasks per thread, so that slow items do not leave threads idle
+			int grain = Math.max(1, (to - from) / (8 * parallelism));
+			pool.invoke(new RangeTask(from, to, grain, action));
+		}
+	}
+
+	@Override
+	public void close() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	protected static class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final int from, to, grain;
+		protected final IntConsumer action;
+
+		protected RangeTask(int from, int to, int grain, IntConsumer action) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				for (int i = from; i < to; i++) {
+					action.accept(i);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new RangeTask(from, middle, grain, action), new RangeTask(middle, to, grain, action));
+			}
+		}
+	}
+}
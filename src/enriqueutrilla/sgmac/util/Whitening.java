@@ -0,0 +1,128 @@
+package enriqueutrilla.sgmac.util;
+
+/**
+ * Copyright 2017 Enrique Utrilla Molina
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Whitening.java
+ * Transform that scales each coordinate by 1/sigma, so that the Mahalanobis
+ * distances of the original space (diagonal covariance) become Euclidean
+ * distances, and kernels can be evaluated without a division per coordinate.
+ * BasicMac and SgMac can run in the whitened space and map the modes and the
+ * other outputs back to the original units.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import enriqueutrilla.sgmac.dm.DatasetPoint;
+import enriqueutrilla.sgmac.dm.PointStore;
+import enriqueutrilla.sgmac.dm.SampledPdfPoint;
+
+public class Whitening {
+
+	protected final double[] sigmas;
+	protected final double[] invSigmas;
+
+	public Whitening(double[] sigmas) {
+		this.sigmas = sigmas;
+		this.invSigmas = new double[sigmas.length];
+		for (int i = 0; i < sigmas.length; i++) {
+			invSigmas[i] = 1 / sigmas[i];
+		}
+	}
+
+	/**
+	 * Sigmas of the whitened space (all ones).
+	 */
+	public double[] getUnitSigmas() {
+		double[] unit = new double[sigmas.length];
+		Arrays.fill(unit, 1);
+		return unit;
+	}
+
+	public double[] whiten(double[] coordinates) {
+		return whiten(coordinates, new double[coordinates.length]);
+	}
+
+	public double[] whiten(double[] coordinates, double[] result) {
+		for (int i = 0; i < sigmas.length; i++) {
+			result[i] = coordinates[i] * invSigmas[i];
+		}
+		return result;
+	}
+
+	public double[] unwhiten(double[] coordinates) {
+		double[] result = new double[coordinates.length];
+		for (int i = 0; i < sigmas.length; i++) {
+			result[i] = coordinates[i] * sigmas[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Whitened copy of the points, with the same ids and order. Points in a
+	 * PointStore are copied to a new store of the same precision and storage.
+	 */
+	public List<DatasetPoint> whiten(List<DatasetPoint> points) {
+		return whiten(points, false);
+	}
+
+	/**
+	 * Whitened copy of the points, written straight to a single precision
+	 * store if singlePrecision is set (without an intermediate double copy).
+	 */
+	public List<DatasetPoint> whiten(List<DatasetPoint> points, boolean singlePrecision) {
+		PointStore store = PointStore.of(points);
+		if (store != null || singlePrecision) {
+			int dim = sigmas.length;
+			PointStore whitened = PointStore.allocate(points.size(), dim, store != null && store.isOffHeap(),
+					singlePrecision || store.isSinglePrecision());
+			double[] buffer = new double[dim];
+			for (int row = 0; row < points.size(); row++) {
+				if (store != null) {
+					store.getCoordinates(row, buffer);
+					whitened.set(row, store.getId(row), whiten(buffer, buffer));
+				} else {
+					DatasetPoint point = points.get(row);
+					whitened.set(row, point.getId(), whiten(point.getCoordinates(), buffer));
+				}
+			}
+			return whitened.asList();
+		} else {
+			List<DatasetPoint> whitened = new ArrayList<>(points.size());
+			for (DatasetPoint point : points) {
+				whitened.add(new DatasetPoint(point.getId(), whiten(point.getCoordinates())));
+			}
+			return whitened;
+		}
+	}
+
+	/**
+	 * Copies of the samples in original units. The PDF values are the same in
+	 * both spaces, and the gradients (mean shift vectors) are scaled like the
+	 * coordinates.
+	 */
+	public List<SampledPdfPoint> unwhitenSamples(List<SampledPdfPoint> samples) {
+		List<SampledPdfPoint> result = new ArrayList<>(samples.size());
+		for (SampledPdfPoint sample : samples) {
+			SampledPdfPoint copy = new SampledPdfPoint(sample.getId(), unwhiten(sample.getCoordinates()),
+					sample.getPdfValue(), unwhiten(sample.getPdfGradient()));
+			copy.setLocalMaximum(sample.isLocalMaximum());
+			result.add(copy);
+		}
+		return result;
+	}
+}